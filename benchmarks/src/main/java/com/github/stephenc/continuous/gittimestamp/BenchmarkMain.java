@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results as JSON to {@code target/jmh-result.json} unless
+ * a result format is given, so that runs can be compared by tooling.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.addAll(Arrays.asList("-rf", "json", "-rff", "target/jmh-result.json"));
+        }
+        Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+}
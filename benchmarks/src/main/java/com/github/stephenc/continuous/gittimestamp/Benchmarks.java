@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.scm.ScmException;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Returns the directory that the synthetic repositories are generated in, which can be changed with the
+     * {@code benchmark.repositories} system property.
+     *
+     * @return the directory.
+     */
+    static File repositories() {
+        return new File(System.getProperty("benchmark.repositories", "target/repositories")).getAbsoluteFile();
+    }
+
+    /**
+     * Creates a backend in the same way as the mojos do.
+     *
+     * @param name    the name of the backend, i.e. {@code cli} or {@code jgit}.
+     * @param basedir the directory to query.
+     * @return the backend.
+     * @throws ScmException if the backend could not be created.
+     */
+    static GitBackend backend(String name, File basedir) throws ScmException {
+        CliGitBackend cli = new CliGitBackend(new BenchmarkMojo(), basedir);
+        GitBackend backend;
+        if ("cli".equals(name)) {
+            backend = cli;
+        } else if ("jgit".equals(name) && JGitBackend.isSupported(basedir)) {
+            backend = new JGitBackend(basedir, cli, new Timings());
+        } else {
+            throw new IllegalArgumentException("Unsupported backend " + name + " for " + basedir);
+        }
+        // as the mojos do before anything else
+        backend.resolveSnapshotKey();
+        return backend;
+    }
+
+    /**
+     * Counts the bytes of the paths that it is given, so that consuming them cannot be optimized away.
+     */
+    static final class CountingConsumer implements PathConsumer {
+        private long bytes;
+
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            bytes += length;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Provides the log and process output consumers that the backends expect from a mojo.
+     */
+    private static final class BenchmarkMojo extends AbstractGitOpsMojo {
+        BenchmarkMojo() {
+            setLog(new QuietLog());
+        }
+
+        @Override
+        public void execute() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Only reports warnings and errors, so that the commands run are not logged on every invocation.
+     */
+    private static final class QuietLog extends SystemStreamLog {
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void debug(CharSequence content) {
+        }
+
+        @Override
+        public void debug(CharSequence content, Throwable error) {
+        }
+
+        @Override
+        public void debug(Throwable error) {
+        }
+
+        @Override
+        public boolean isInfoEnabled() {
+            return false;
+        }
+
+        @Override
+        public void info(CharSequence content) {
+        }
+
+        @Override
+        public void info(CharSequence content, Throwable error) {
+        }
+
+        @Override
+        public void info(Throwable error) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.scm.ScmException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The commit count that both mojos start with, over deep linear and merge heavy histories.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommitCountBenchmark {
+    /**
+     * The limit of the walk of the incremental count.
+     */
+    private static final int MAX_INCREMENTAL_COMMITS = 1024;
+
+    @Param({"10000", "100000"})
+    public int commits;
+    @Param({"linear", "merges"})
+    public String history;
+    @Param({"cli", "jgit"})
+    public String backend;
+
+    private GitBackend git;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ScmException {
+        File root = new SyntheticRepository()
+                .files(1000)
+                .commits(commits)
+                .mergeEvery("merges".equals(history) ? 10 : 0)
+                .create(Benchmarks.repositories());
+        git = Benchmarks.backend(backend, root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        git.close();
+    }
+
+    /**
+     * Counts every commit reachable from {@code HEAD}, as on a miss of the persistent cache.
+     */
+    @Benchmark
+    public long countCommits() throws ScmException, MojoExecutionException {
+        return git.countCommits(null);
+    }
+
+    /**
+     * Walks the first parent history as far as the incremental count would look for a cached ancestor.
+     */
+    @Benchmark
+    public long walkLinearHistory() throws ScmException {
+        final long[] walked = new long[1];
+        git.walkLinearHistory(MAX_INCREMENTAL_COMMITS, new GitBackend.CommitVisitor() {
+            @Override
+            public boolean visit(String id, int parents) {
+                walked[0]++;
+                return parents == 1;
+            }
+        });
+        return walked[0];
+    }
+}
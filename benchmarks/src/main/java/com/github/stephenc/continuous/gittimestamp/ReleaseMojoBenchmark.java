@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.scm.ScmException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The phases of {@code git-timestamp:setup-release} that depend on the number of tags. The generated repository also
+ * stands in for the remote repository, by its path, so that no network is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReleaseMojoBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * The number of candidates that are looked up, twice as many as the repeats that are taken.
+     */
+    private static final int CANDIDATES = 16;
+
+    @Param({"100000"})
+    public int tags;
+    @Param({"cli", "jgit"})
+    public String backend;
+
+    private File root;
+    private GitBackend git;
+    private List<String> tagNames;
+    private String baseVersion;
+    private TagNameTemplate template;
+    private List<String> candidates;
+    private byte[] refs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ScmException, MojoExecutionException {
+        SyntheticRepository repository = new SyntheticRepository().files(1000).tags(tags);
+        root = repository.create(Benchmarks.repositories());
+        git = Benchmarks.backend(backend, root);
+        tagNames = repository.tagNames();
+        baseVersion = repository.baseVersion();
+        template = TagNameTemplate.compile("@{project.artifactId}-@{project.version}", "bench", "bench");
+        candidates = new ArrayList<>(CANDIDATES);
+        candidates.add(template.render(baseVersion));
+        for (int i = 1; i < CANDIDATES; i++) {
+            candidates.add(template.render(baseVersion + "." + i));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String name : tagNames) {
+            out.write(("0123456789abcdef0123456789abcdef01234567\trefs/tags/" + name + "\n").getBytes(UTF_8));
+        }
+        refs = out.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        git.close();
+    }
+
+    /**
+     * Parses the output of {@code git ls-remote --tags} without running git.
+     */
+    @Benchmark
+    public long parseTagRefs() throws IOException {
+        Benchmarks.CountingConsumer consumer = new Benchmarks.CountingConsumer();
+        NulSeparatedOutput.read(new ByteArrayInputStream(refs), (byte) '\n', new TagRefParser(consumer));
+        return consumer.getBytes();
+    }
+
+    /**
+     * Lists every tag of the remote repository, as {@code remoteTagQuery=all} does.
+     */
+    @Benchmark
+    public int listRemoteTags() throws ScmException {
+        Set<String> result = new HashSet<>();
+        git.listRemoteTags(root.getPath(), result);
+        return result.size();
+    }
+
+    /**
+     * Looks up the candidates in the local repository, as {@code localTags} does.
+     */
+    @Benchmark
+    public int lookupLocalCandidates() throws ScmException {
+        Set<String> result = new HashSet<>();
+        git.listTags(candidates, result);
+        return result.size();
+    }
+
+    /**
+     * Indexes every tag and chooses the version, as after listing every tag.
+     */
+    @Benchmark
+    public String resolveCandidate() {
+        TagIndex index = new TagIndex();
+        for (String name : tagNames) {
+            String version = template.parse(name);
+            if (version != null && version.startsWith(baseVersion)) {
+                index.add(version);
+            }
+        }
+        return index.nextFree(baseVersion, false);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates a git repository with a working tree without any network access, by streaming the history into
+ * {@code git fast-import}. The repository is generated once for each combination of settings and then reused, as the
+ * larger repositories take minutes to generate.
+ * <p>
+ * The tracked files are laid out 100 to a directory. The history starts with a commit adding every file, followed by
+ * commits that each change one file. Every {@link #mergeEvery(int)} commits the change is made on a side branch and
+ * merged back. Tags are named as {@code release:prepare} names them for an artifact called {@code bench}, i.e.
+ * {@code bench-1.<n>}, with a few repeats of the version that {@code setup-release} would choose, and are packed.
+ */
+final class SyntheticRepository {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * The number of distinct file contents, as git stores identical contents once.
+     */
+    private static final int BLOBS = 16;
+    private static final long EPOCH_SECONDS = 1500000000L;
+
+    private int files = 10000;
+    private int commits = 100;
+    private int mergeEvery;
+    private int tags;
+    private int repeats = 8;
+    private int dirty;
+
+    /**
+     * Sets the number of tracked files.
+     *
+     * @param files the number of tracked files.
+     * @return {@code this}.
+     */
+    SyntheticRepository files(int files) {
+        this.files = files;
+        return this;
+    }
+
+    /**
+     * Sets the number of commits on the first parent history of {@code HEAD}.
+     *
+     * @param commits the number of commits.
+     * @return {@code this}.
+     */
+    SyntheticRepository commits(int commits) {
+        this.commits = commits;
+        return this;
+    }
+
+    /**
+     * Sets how often a commit is a merge.
+     *
+     * @param mergeEvery the number of commits between merges or {@code 0} for a linear history.
+     * @return {@code this}.
+     */
+    SyntheticRepository mergeEvery(int mergeEvery) {
+        this.mergeEvery = mergeEvery;
+        return this;
+    }
+
+    /**
+     * Sets the number of tags.
+     *
+     * @param tags the number of tags.
+     * @return {@code this}.
+     */
+    SyntheticRepository tags(int tags) {
+        this.tags = tags;
+        return this;
+    }
+
+    /**
+     * Sets the number of tracked files to modify in the working tree.
+     *
+     * @param dirty the number of modified files.
+     * @return {@code this}.
+     */
+    SyntheticRepository dirty(int dirty) {
+        this.dirty = dirty;
+        return this;
+    }
+
+    /**
+     * Returns the version that {@code setup-release} starts from for a project version of {@code 1.x-SNAPSHOT}.
+     *
+     * @return the base version.
+     */
+    String baseVersion() {
+        // every merge brings in one commit from the side branch
+        return "1." + (commits + (mergeEvery > 0 ? (commits - 1) / mergeEvery : 0));
+    }
+
+    /**
+     * Returns the path of a tracked file.
+     *
+     * @param index the index of the file.
+     * @return the path relative to the root of the working tree.
+     */
+    static String path(int index) {
+        return "d" + (index / 1000) + "/d" + (index / 100 % 10) + "/f" + index + ".txt";
+    }
+
+    /**
+     * Returns the names of the tags.
+     *
+     * @return the names of the tags.
+     */
+    List<String> tagNames() {
+        List<String> names = new ArrayList<>(tags + repeats);
+        for (int i = 0; i < tags; i++) {
+            if (!baseVersion().equals("1." + i)) {
+                names.add("bench-1." + i);
+            }
+        }
+        if (tags > 0) {
+            names.add("bench-" + baseVersion());
+            for (int i = 1; i < repeats; i++) {
+                names.add("bench-" + baseVersion() + "." + i);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Creates the repository unless it has already been created.
+     *
+     * @param parent the directory to create the repository in.
+     * @return the root of the working tree.
+     * @throws IOException if the repository could not be created.
+     */
+    File create(File parent) throws IOException {
+        File root = new File(parent, "files-" + files + "-commits-" + commits + "-merge-" + mergeEvery + "-tags-"
+                + tags + "-dirty-" + dirty);
+        File complete = new File(root, ".git/synthetic-complete");
+        if (complete.isFile()) {
+            return root;
+        }
+        if (root.exists()) {
+            run(parent, "rm", "-rf", root.getName());
+        }
+        if (!root.mkdirs()) {
+            throw new IOException("Could not create " + root);
+        }
+        run(root, "git", "init", "-q");
+        run(root, "git", "symbolic-ref", "HEAD", "refs/heads/master");
+        fastImport(root);
+        run(root, "git", "pack-refs", "--all");
+        run(root, "git", "reset", "-q", "--hard", "master");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < dirty; i++) {
+            // spread the changes over the tree
+            File file = new File(root, path((int) ((long) i * files / dirty)));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(raf.length());
+                raf.write("dirty\n".getBytes(UTF_8));
+            }
+            file.setLastModified(now);
+        }
+        if (!complete.createNewFile()) {
+            throw new IOException("Could not create " + complete);
+        }
+        return root;
+    }
+
+    private void fastImport(File root) throws IOException {
+        Process process = new ProcessBuilder("git", "fast-import", "--quiet")
+                .directory(root)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (OutputStream out = new BufferedOutputStream(process.getOutputStream(), 1 << 16)) {
+            for (int i = 1; i <= BLOBS; i++) {
+                write(out, "blob\nmark :" + i + "\n");
+                data(out, "content " + i + "\n");
+            }
+            int mark = BLOBS;
+            int first = mark + 1;
+            int previous = 0;
+            for (int c = 0; c < commits; c++) {
+                if (c == 0) {
+                    write(out, "commit refs/heads/master\nmark :" + (++mark) + "\n");
+                    author(out, c);
+                    data(out, "initial\n");
+                    for (int i = 0; i < files; i++) {
+                        write(out, "M 100644 :" + (1 + i % BLOBS) + " " + path(i) + "\n");
+                    }
+                    write(out, "\n");
+                    previous = mark;
+                    continue;
+                }
+                String change = "M 100644 :" + (1 + c % BLOBS) + " " + path(c % files) + "\n";
+                if (mergeEvery > 0 && c % mergeEvery == 0) {
+                    write(out, "commit refs/heads/side\nmark :" + (++mark) + "\n");
+                    author(out, c);
+                    data(out, "side " + c + "\n");
+                    write(out, "from :" + previous + "\n" + change + "\n");
+                    int side = mark;
+                    write(out, "commit refs/heads/master\nmark :" + (++mark) + "\n");
+                    author(out, c);
+                    data(out, "merge " + c + "\n");
+                    write(out, "from :" + previous + "\nmerge :" + side + "\n\n");
+                } else {
+                    write(out, "commit refs/heads/master\nmark :" + (++mark) + "\n");
+                    author(out, c);
+                    data(out, "change " + c + "\n");
+                    write(out, "from :" + previous + "\n" + change + "\n");
+                }
+                previous = mark;
+            }
+            int commitMarks = mark - first + 1;
+            int i = 0;
+            for (String name : tagNames()) {
+                write(out, "reset refs/tags/" + name + "\nfrom :" + (first + i++ % commitMarks) + "\n\n");
+            }
+            write(out, "done\n");
+        }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException("git fast-import exited with code " + exitCode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating " + root, e);
+        }
+    }
+
+    private static void author(OutputStream out, int commit) throws IOException {
+        String ident = "Bench <bench@example.com> " + (EPOCH_SECONDS + commit) + " +0000\n";
+        write(out, "author " + ident + "committer " + ident);
+    }
+
+    private static void data(OutputStream out, String data) throws IOException {
+        byte[] bytes = data.getBytes(UTF_8);
+        write(out, "data " + bytes.length + "\n");
+        out.write(bytes);
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(UTF_8));
+    }
+
+    private static void run(File directory, String... command) throws IOException {
+        try {
+            int exitCode = new ProcessBuilder(command)
+                    .directory(directory)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start()
+                    .waitFor();
+            if (exitCode != 0) {
+                throw new IOException(Arrays.toString(command) + " exited with code " + exitCode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + Arrays.toString(command), e);
+        }
+    }
+}
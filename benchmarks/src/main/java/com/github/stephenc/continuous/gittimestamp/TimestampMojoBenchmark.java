@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.scm.ScmException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The phases of {@code git-timestamp:timestamp} that depend on the size of the working tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimestampMojoBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+    @Param({"0", "100"})
+    public int dirty;
+    @Param({"cli", "jgit"})
+    public String backend;
+
+    private File root;
+    private GitBackend git;
+    private GitSnapshot.Key key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ScmException {
+        root = new SyntheticRepository().files(files).dirty(dirty).create(Benchmarks.repositories());
+        git = Benchmarks.backend(backend, root);
+        key = git.resolveSnapshotKey();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        git.close();
+    }
+
+    /**
+     * Lists the changed files, as every source does first.
+     */
+    @Benchmark
+    public long status() throws ScmException {
+        Benchmarks.CountingConsumer consumer = new Benchmarks.CountingConsumer();
+        git.listChangedFiles(root, PathFilter.ALL, consumer);
+        return consumer.getBytes();
+    }
+
+    /**
+     * Lists the tracked files without checking them.
+     */
+    @Benchmark
+    public long listFiles() throws ScmException {
+        Benchmarks.CountingConsumer consumer = new Benchmarks.CountingConsumer();
+        git.listFiles(root, consumer);
+        return consumer.getBytes();
+    }
+
+    /**
+     * Checks the last modified timestamp of every tracked file, as {@code timestampSource=working-tree} does.
+     */
+    @Benchmark
+    public WorkingTreeState fileScan() throws ScmException {
+        WorkingTreeState.Builder builder = new WorkingTreeState.Builder();
+        FileTimestampScanner scanner = new FileTimestampScanner(root.toPath(), 0);
+        try {
+            git.listFiles(root, scanner);
+        } catch (ScmException | RuntimeException e) {
+            scanner.abort();
+            throw e;
+        }
+        scanner.finish(builder);
+        return builder.build();
+    }
+
+    /**
+     * Reads the timestamps recorded in the index, as {@code timestampSource=index} does.
+     */
+    @Benchmark
+    public long indexScan() throws IOException {
+        final long[] lastModified = new long[1];
+        GitIndexReader.read(key.getGitDir(), new GitIndexReader.Visitor() {
+            @Override
+            public void visit(byte[] buffer, int offset, int length, long modified, boolean trusted) {
+                lastModified[0] = Math.max(lastModified[0], modified);
+            }
+        });
+        return lastModified[0];
+    }
+
+    /**
+     * Reads the commit time of {@code HEAD}, as {@code timestampSource=commit} does.
+     */
+    @Benchmark
+    public long headCommitTime() throws ScmException, MojoExecutionException {
+        return git.getHeadCommitTime();
+    }
+}
@@ -18,8 +18,21 @@ package com.github.stephenc.continuous.gittimestamp;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -30,17 +43,19 @@ import org.apache.maven.scm.ScmException;
 import org.apache.maven.scm.manager.NoSuchScmProviderException;
 import org.apache.maven.scm.manager.ScmManager;
 import org.apache.maven.scm.provider.ScmProvider;
-import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
 import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
 import org.apache.maven.scm.repository.ScmRepository;
 import org.apache.maven.scm.repository.ScmRepositoryException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
-import org.codehaus.plexus.util.cli.Commandline;
 
 /**
  * Base class for the GitOps mojos.
  */
 public abstract class AbstractGitOpsMojo extends AbstractMojo {
+    /**
+     * The maximum number of new commits to walk when deriving the commit count from that of an ancestor.
+     */
+    private static final int MAX_INCREMENTAL_COMMITS = 1024;
     /**
      * The commit, branch or tag name to use as the "zero" revision. Helpful if you want to reset numbering for a
      * branch, e.g. if you move from {@code 1.x} to {@code 2.x} you may want the {@code x} numbers for {@code 2.x} to
@@ -74,6 +89,115 @@ public abstract class AbstractGitOpsMojo extends AbstractMojo {
     protected String scmDeveloperUrl;
     @Parameter(defaultValue = "${project}", readonly = true)
     protected MavenProject project;
+    @Parameter(defaultValue = "${session}", readonly = true)
+    protected MavenSession session;
+    /**
+     * The backend to use for querying the git repository:
+     * <dl>
+     * <dt>{@code cli}</dt>
+     * <dd>Forks the {@code git} executable for every query.</dd>
+     * <dt>{@code jgit}</dt>
+     * <dd>Reads the repository in-process, only the querying of remote repositories will fork the {@code git}
+     * executable. Repositories that the bundled JGit cannot read, such as linked worktrees, version 4, split or sparse
+     * indexes and files with clean filters such as Git LFS, fall back to {@code cli}.</dd>
+     * </dl>
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "gitBackend", defaultValue = "cli")
+    protected String gitBackend;
+    /**
+     * Set this property to {@code false} to disable the cache of results that is kept between builds in the git
+     * common directory. The cache is keyed by the commit that is checked out, the state of the index and the changed
+     * files, so it never needs to be cleared by hand. The cache also keeps the tags seen in remote repositories, which
+     * only ever grow.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "persistentCache", defaultValue = "true")
+    protected boolean persistentCache;
+    /**
+     * If defined, the name of the file to write the timing of each git command and each phase to as JSON, for example
+     * {@code ${project.build.directory}/git-timestamp-timings.json}. A summary of the timings is then logged as well,
+     * otherwise it is only logged at debug level.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "timingReport")
+    protected File timingReport;
+    /**
+     * The number of commits on the current branch (since the {@link #referenceCommit} if specified), for builds that
+     * know the count without having the full history, e.g. {@code -DcommitCount=1234} from a CI system. When
+     * specified, the history is not counted at all, so the {@code moduleScope} of {@code git-timestamp:timestamp}
+     * does not apply.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "commitCount")
+    protected Long commitCount;
+    /**
+     * The prefix of the refs that record the commit counts of commits, for counting in shallow clones. A ref named
+     * {@code <prefix><count>} records that {@code count} commits are reachable from the commit that it points at.
+     * A job with the full history can record its count with
+     * {@code git update-ref refs/commit-counts/$(git rev-list --count HEAD) HEAD} and push the ref. A shallow clone
+     * that fetches the ref of an ancestor counts from it by walking only the linear history that was fetched,
+     * otherwise only the fetched commits are counted and a warning is logged.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "commitCountRefs", defaultValue = "refs/commit-counts/")
+    protected String commitCountRefs;
+    /**
+     * Controls whether the state of the git repository is kept between builds by a long lived Maven process, such as
+     * the Maven daemon ({@code mvnd}), watching the working tree and the tags for changes:
+     * <dl>
+     * <dt>{@code auto}</dt>
+     * <dd>Keeps the state when running within the Maven daemon.</dd>
+     * <dt>{@code true}</dt>
+     * <dd>Always keeps the state.</dd>
+     * <dt>{@code false}</dt>
+     * <dd>Never keeps the state.</dd>
+     * </dl>
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "daemonCache", defaultValue = "auto")
+    protected String daemonCache;
+    /**
+     * Set this property to {@code true} to have {@code git status} use the builtin file system monitor of git and the
+     * untracked cache, so that it only checks the files that changed since the previous status rather than every
+     * tracked file. git starts the monitor for the working tree on first use and it keeps running in the background.
+     * Where the build of git has no builtin file system monitor, status checks every tracked file as usual. When
+     * enabled the status is always queried with the {@code git} executable. Combine with the {@code index} timestamp
+     * source so that the timestamp does not check every tracked file either.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "gitFsmonitor", defaultValue = "false")
+    protected boolean fsmonitor;
+    /**
+     * Which changes make the working tree modified:
+     * <dl>
+     * <dt>{@code tracked}</dt>
+     * <dd>Tracked files that are modified, added or removed. Untracked files are ignored.</dd>
+     * <dt>{@code untracked}</dt>
+     * <dd>As {@code tracked}, and also any untracked files that are not ignored by {@code .gitignore}. The untracked
+     * files are only looked for if no tracked file has changed, and only until the first one is found.</dd>
+     * </dl>
+     * {@code git-timestamp:timestamp} adds one to the commit count of a modified working tree when
+     * {@code versionIncludesCommitCount} is {@code true}. {@code git-timestamp:setup-release} warns about a modified
+     * working tree, as the changes are not part of the commits that the release version is worked out from.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "tracked", property = "dirtyScope")
+    private String dirtyScope;
+    private final Timings timings = new Timings();
+    private GitBackend backend;
+    private final List<GitBackend> otherBackends = new ArrayList<>();
+    private GitSnapshot snapshot;
+    private ExecutorService background;
+    private ExecutorService parallel;
 
     protected void writeFile(File fileName, String value) throws IOException {
         if (fileName != null) {
@@ -92,22 +216,495 @@ public abstract class AbstractGitOpsMojo extends AbstractMojo {
 
     protected long getCurrentBranchCommitCount()
             throws ScmException, MojoExecutionException {
-        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "rev-list");
-        cl.createArg().setValue("--count");
-        if (StringUtils.isBlank(referenceCommit)) {
-            cl.createArg().setValue("HEAD");
-        } else {
-            cl.createArg().setValue(referenceCommit + "..HEAD");
+        if (commitCount != null) {
+            getLog().debug("Using the supplied count of " + commitCount + " commits");
+            return commitCount;
+        }
+        GitSnapshot snapshot = getGitSnapshot();
+        return getCommitCount(getGitBackend(), snapshot, StringUtils.trimToNull(referenceCommit));
+    }
+
+    /**
+     * Returns the number of commits on the current branch of a repository, counting them once per session.
+     *
+     * @param git       the backend of the repository.
+     * @param snapshot  the snapshot of the repository.
+     * @param reference the reference commit or {@code null}.
+     * @return the number of commits.
+     * @throws ScmException           if the commits could not be counted.
+     * @throws MojoExecutionException if the commits could not be counted.
+     */
+    protected long getCommitCount(final GitBackend git, final GitSnapshot snapshot, final String reference)
+            throws ScmException, MojoExecutionException {
+        return snapshot.getCommitCount(reference, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                Timings.Timing timing = timings.start("commit-count", reference == null ? "HEAD" : reference);
+                try {
+                    return countCommits(git, snapshot, reference);
+                } finally {
+                    timing.stop();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts counting the commits on the current branch on a background thread, so that the count overlaps with the
+     * other git queries of the mojo.
+     *
+     * @return the pending count, see {@link #await(Future)}.
+     * @throws ScmException if the git repository could not be resolved.
+     */
+    protected Future<Long> startCurrentBranchCommitCount() throws ScmException {
+        return startInBackground(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return getCurrentBranchCommitCount();
+            }
+        });
+    }
+
+    /**
+     * Starts a git query on a background thread, so that it overlaps with the other git queries of the mojo. The
+     * queries run one at a time in the order that they were started and the background thread is stopped by
+     * {@link #closeGitBackend()}.
+     *
+     * @param query the query.
+     * @param <V>   the type of the result.
+     * @return the pending result, see {@link #await(Future)}.
+     * @throws ScmException if the git repository could not be resolved.
+     */
+    protected <V> Future<V> startInBackground(Callable<V> query) throws ScmException {
+        // resolve the backend and snapshot here, they are not safe to create from two threads
+        getGitSnapshot();
+        if (background == null) {
+            background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    // git cannot be interrupted, so do not hold up the exit of the JVM if the build fails meanwhile
+                    Thread thread = new Thread(r, "git-timestamp background query");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return background.submit(query);
+    }
+
+    /**
+     * Starts a git query on a thread of its own, so that it runs in parallel with every other query, e.g. to query
+     * several repositories at once. The threads are stopped by {@link #closeGitBackend()}.
+     *
+     * @param query the query.
+     * @param <V>   the type of the result.
+     * @return the pending result, see {@link #await(Future)}.
+     */
+    protected synchronized <V> Future<V> startInParallel(Callable<V> query) {
+        if (parallel == null) {
+            parallel = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "git-timestamp parallel query");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return parallel.submit(query);
+    }
+
+    /**
+     * Waits for a query started by {@link #startInBackground(Callable)} or {@link #startInParallel(Callable)}.
+     *
+     * @param result the pending result.
+     * @param <V>    the type of the result.
+     * @return the result.
+     * @throws ScmException           if the query failed.
+     * @throws MojoExecutionException if the query failed.
+     */
+    protected <V> V await(Future<V> result) throws ScmException, MojoExecutionException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while querying git", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ScmException) {
+                throw (ScmException) cause;
+            }
+            if (cause instanceof MojoExecutionException) {
+                throw (MojoExecutionException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new MojoExecutionException(cause.getMessage(), cause);
+        }
+    }
+
+    private long countCommits(GitBackend git, GitSnapshot snapshot, String reference)
+            throws ScmException, MojoExecutionException {
+        Set<String> shallow;
+        try {
+            shallow = snapshot.getKey() == null
+                    ? Collections.<String>emptySet()
+                    : GitFiles.shallowCommits(snapshot.getKey().getGitDir());
+        } catch (IOException e) {
+            throw new ScmException("Could not read the shallow commits of " + snapshot.getKey().getGitDir(), e);
+        }
+        if (!shallow.isEmpty()) {
+            return countShallowCommits(git, reference, shallow);
+        }
+        final TimestampCache cache = isCacheable(reference) ? getTimestampCache(snapshot.getKey()) : null;
+        if (cache == null) {
+            return git.countCommits(reference);
+        }
+        final String head = snapshot.getKey().getHead();
+        Long count = cache.getCommitCount(commitCountKey(reference, head));
+        if (count == null && reference == null) {
+            count = countNewCommits(git, new KnownCounts() {
+                @Override
+                public Long get(String id) {
+                    // already looked up
+                    return id.equals(head) ? null : cache.getCommitCount(commitCountKey(null, id));
+                }
+            }, shallow);
+        }
+        if (count == null) {
+            count = git.countCommits(reference);
+        }
+        cache.putCommitCount(commitCountKey(reference, head), count);
+        return count;
+    }
+
+    /**
+     * Counts the commits of a shallow clone without deepening it, from the count recorded by a
+     * {@link #commitCountRefs} ref on the nearest ancestor that was fetched. Without one only the commits that were
+     * fetched can be counted.
+     *
+     * @param git       the backend.
+     * @param reference the reference commit or {@code null}.
+     * @param shallow   the commits at which the history was cut off.
+     * @return the count.
+     * @throws ScmException           if the history could not be walked.
+     * @throws MojoExecutionException if the history could not be counted.
+     */
+    private long countShallowCommits(GitBackend git, String reference, Set<String> shallow)
+            throws ScmException, MojoExecutionException {
+        String prefix = StringUtils.trimToNull(commitCountRefs);
+        if (reference == null && prefix != null) {
+            if (!prefix.endsWith("/")) {
+                prefix = prefix + "/";
+            }
+            Map<String, String> refs = new HashMap<>();
+            git.listRefs(prefix, refs);
+            final Map<String, Long> recorded = new HashMap<>();
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                try {
+                    recorded.put(ref.getValue(), Long.valueOf(ref.getKey()));
+                } catch (NumberFormatException e) {
+                    getLog().debug("Ignoring " + prefix + ref.getKey() + " as it does not name a commit count");
+                }
+            }
+            Long count = recorded.isEmpty() ? null : countNewCommits(git, new KnownCounts() {
+                @Override
+                public Long get(String id) {
+                    return recorded.get(id);
+                }
+            }, shallow);
+            if (count != null) {
+                return count;
+            }
+        }
+        long count = git.countCommits(reference);
+        getLog().warn("The git repository is a shallow clone, only the " + count + " commits that were fetched "
+                + "have been counted. Supply the count with -DcommitCount, fetch the " + commitCountRefs
+                + " refs or fetch the full history.");
+        return count;
+    }
+
+    /**
+     * Returns {@code true} if results relative to a reference commit can be cached, as a branch or tag name can move,
+     * so only results relative to a full object id can be cached.
+     *
+     * @param reference the reference commit or {@code null}.
+     * @return {@code true} if results relative to the reference commit can be cached.
+     */
+    protected static boolean isCacheable(String reference) {
+        return reference == null || reference.matches("^[0-9a-f]{40}([0-9a-f]{24})?$");
+    }
+
+    private static String commitCountKey(String reference, String head) {
+        return (reference == null ? "" : reference) + ".." + head;
+    }
+
+    /**
+     * Looks up the commit count of a commit, if it is known without counting.
+     */
+    private interface KnownCounts {
+        /**
+         * Returns the count of a commit.
+         *
+         * @param id the commit.
+         * @return the number of commits reachable from the commit or {@code null} if not known.
+         */
+        Long get(String id);
+    }
+
+    /**
+     * Counts the commits reachable from {@code HEAD} by walking back to the nearest ancestor with a known count. As
+     * each commit that is walked has only one parent, the commit is never reachable from that parent and the count is
+     * exactly one more than the count of the parent.
+     *
+     * @param git     the backend.
+     * @param known   the known counts.
+     * @param shallow the commits at which a shallow clone was cut off, which are not root commits.
+     * @return the count or {@code null} if a merge commit or the end of a shallow history was reached first and a full
+     * count is required.
+     * @throws ScmException if the history could not be walked.
+     */
+    private Long countNewCommits(GitBackend git, final KnownCounts known, final Set<String> shallow)
+            throws ScmException {
+        final long[] count = new long[1];
+        final String[] from = new String[1];
+        git.walkLinearHistory(MAX_INCREMENTAL_COMMITS, new GitBackend.CommitVisitor() {
+            private long walked;
+
+            @Override
+            public boolean visit(String id, int parents) {
+                Long value = known.get(id);
+                if (value != null) {
+                    count[0] = value + walked;
+                    from[0] = id;
+                    return false;
+                }
+                walked++;
+                if (parents == 0 && !shallow.contains(id)) {
+                    // the root commit, the whole history is linear
+                    count[0] = walked;
+                    from[0] = id;
+                    return false;
+                }
+                return parents == 1;
+            }
+        });
+        if (count[0] > 0) {
+            getLog().debug("Counted " + count[0] + " commits incrementally from " + from[0]);
+            return count[0];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cache that is kept between builds.
+     *
+     * @param key the key of the current snapshot.
+     * @return the cache or {@code null} if it is disabled or the snapshot is not shared.
+     */
+    protected TimestampCache getTimestampCache(GitSnapshot.Key key) {
+        if (!persistentCache || key == null) {
+            return null;
         }
-        CommandLineUtils.StringStreamConsumer countOutput = new CommandLineUtils.StringStreamConsumer();
-        GitCommandLineUtils.execute(cl, countOutput, logWarnConsumer(), new GitCommandLineLogger(this));
         try {
-            return Long.parseLong(StringUtils.defaultIfBlank(countOutput.getOutput().trim(), "0"));
-        } catch (NumberFormatException e) {
-            throw new MojoExecutionException(
-                    "Could not parse revision count from 'rev-list --count' output: " + countOutput.getOutput(),
-                    e
-            );
+            return TimestampCache.forKey(key, getLog());
+        } catch (IOException e) {
+            getLog().debug("Could not locate the git common directory, results will not be cached", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the snapshot of the git repository that is shared with the other executions in the current session.
+     *
+     * @return the snapshot of the git repository.
+     * @throws ScmException if the git repository could not be queried.
+     */
+    protected GitSnapshot getGitSnapshot() throws ScmException {
+        if (snapshot == null) {
+            GitSnapshot.Key key = getGitBackend().resolveSnapshotKey();
+            if (key == null) {
+                getLog().debug("Could not resolve git repository state, results will not be shared within the session");
+            }
+            snapshot = GitSnapshot.forSession(session, key, isDaemonCache(), getLog());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the snapshot of another git repository, such as a submodule, that is shared with the other executions in
+     * the current session.
+     *
+     * @param git       the backend of the repository.
+     * @param directory the directory that the backend queries.
+     * @return the snapshot of the repository.
+     * @throws ScmException if the repository could not be queried.
+     */
+    protected GitSnapshot getGitSnapshot(GitBackend git, File directory) throws ScmException {
+        GitSnapshot.Key key = git.resolveSnapshotKey();
+        if (key == null) {
+            throw new ScmException("Could not resolve the state of the git repository containing " + directory);
+        }
+        return GitSnapshot.forSession(session, key, isDaemonCache(), getLog());
+    }
+
+    private boolean isDaemonCache() {
+        if (daemonCache == null || "auto".equalsIgnoreCase(daemonCache)) {
+            return System.getProperty("mvnd.home") != null;
+        }
+        return Boolean.parseBoolean(daemonCache);
+    }
+
+    /**
+     * Returns the backend to use for querying the git repository.
+     *
+     * @return the backend to use for querying the git repository.
+     * @throws ScmException if the backend could not be created.
+     */
+    protected GitBackend getGitBackend() throws ScmException {
+        if (backend == null) {
+            ScmRepository repository = getScmRepository();
+            try {
+                getValidatedScmProvider(repository);
+            } catch (MojoFailureException e) {
+                throw new ScmException(e.getMessage(), e);
+            }
+            backend = newGitBackend(basedir);
+        }
+        return backend;
+    }
+
+    /**
+     * Returns a backend for querying another git repository, such as a submodule. The backend is closed by
+     * {@link #closeGitBackend()}.
+     *
+     * @param directory a directory within the working tree of the repository.
+     * @return the backend.
+     * @throws ScmException if the backend could not be created.
+     */
+    protected GitBackend getGitBackend(File directory) throws ScmException {
+        GitBackend other = newGitBackend(directory);
+        synchronized (otherBackends) {
+            otherBackends.add(other);
+        }
+        return other;
+    }
+
+    private GitBackend newGitBackend(File directory) throws ScmException {
+        GitBackend cli = new CliGitBackend(this, directory);
+        if ("cli".equalsIgnoreCase(gitBackend)) {
+            return cli;
+        } else if ("jgit".equalsIgnoreCase(gitBackend)) {
+            if (JGitBackend.isSupported(directory)) {
+                return new JGitBackend(directory, cli, timings);
+            }
+            getLog().debug("Git repository cannot be read in-process, falling back to the git executable");
+            return cli;
+        }
+        throw new ScmException("Unknown git backend '" + gitBackend + "', expected one of: jgit, cli");
+    }
+
+    /**
+     * Returns the timings of the git commands and the phases of this execution.
+     *
+     * @return the timings.
+     */
+    protected Timings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Logs the summary of the timings and writes the timing report, if requested.
+     */
+    protected void reportTimings() {
+        String summary = timings.summary();
+        if (summary == null) {
+            return;
+        }
+        if (timingReport == null) {
+            // one line per module would be noise in a reactor build
+            getLog().debug("Timings: " + summary);
+        } else {
+            getLog().info("Timings: " + summary);
+            try {
+                timings.write(timingReport);
+            } catch (IOException e) {
+                getLog().warn("Could not write timing report " + timingReport, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of seconds for which a query of a remote repository over HTTP may stall before git gives up.
+     *
+     * @return the number of seconds or {@code 0} to use the settings of git.
+     */
+    protected int getRemoteReadTimeout() {
+        return 0;
+    }
+
+    /**
+     * Returns {@code true} if {@code git status} should use the builtin file system monitor of git.
+     *
+     * @return {@code true} to use the builtin file system monitor where available.
+     */
+    protected boolean isFsmonitor() {
+        return fsmonitor;
+    }
+
+    /**
+     * Returns {@code true} if untracked files make the working tree modified, as set by {@code dirtyScope}.
+     *
+     * @return {@code true} if untracked files make the working tree modified.
+     * @throws MojoFailureException if {@code dirtyScope} is not valid.
+     */
+    protected boolean isUntrackedDirty() throws MojoFailureException {
+        String scope = dirtyScope == null ? "tracked" : dirtyScope.trim();
+        if ("tracked".equalsIgnoreCase(scope)) {
+            return false;
+        }
+        if ("untracked".equalsIgnoreCase(scope)) {
+            return true;
+        }
+        throw new MojoFailureException("Unknown dirtyScope '" + dirtyScope + "', expected one of: tracked, untracked");
+    }
+
+    /**
+     * Stops any background queries and releases any resources held by the backend.
+     */
+    protected void closeGitBackend() {
+        if (background != null) {
+            background.shutdownNow();
+            background = null;
+        }
+        synchronized (this) {
+            if (parallel != null) {
+                parallel.shutdownNow();
+                parallel = null;
+            }
+        }
+        if (backend != null) {
+            try {
+                backend.close();
+            } catch (IOException e) {
+                getLog().debug("Could not close git backend", e);
+            }
+            backend = null;
+        }
+        synchronized (otherBackends) {
+            for (GitBackend other : otherBackends) {
+                try {
+                    other.close();
+                } catch (IOException e) {
+                    getLog().debug("Could not close git backend", e);
+                }
+            }
+            otherBackends.clear();
         }
     }
 
@@ -128,7 +725,7 @@ public abstract class AbstractGitOpsMojo extends AbstractMojo {
     }
 
     protected CommandLineUtils.StringStreamConsumer logWarnConsumer() {
-        return new CommandLineUtils.StringStreamConsumer() {
+        return new BoundedStringStreamConsumer() {
             @Override
             public void consumeLine(String line) {
                 super.consumeLine(line);
@@ -137,7 +734,7 @@ public abstract class AbstractGitOpsMojo extends AbstractMojo {
         };
     }
     protected CommandLineUtils.StringStreamConsumer logInfoConsumer() {
-        return new CommandLineUtils.StringStreamConsumer() {
+        return new BoundedStringStreamConsumer() {
             @Override
             public void consumeLine(String line) {
                 super.consumeLine(line);
@@ -146,7 +743,7 @@ public abstract class AbstractGitOpsMojo extends AbstractMojo {
         };
     }
     protected CommandLineUtils.StringStreamConsumer logDebugConsumer() {
-        return new CommandLineUtils.StringStreamConsumer() {
+        return new BoundedStringStreamConsumer() {
             @Override
             public void consumeLine(String line) {
                 super.consumeLine(line);
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+
+/**
+ * A {@link CommandLineUtils.StringStreamConsumer} that only retains the start of the output, so that a command which
+ * produces a lot of diagnostics cannot exhaust the heap.
+ */
+class BoundedStringStreamConsumer extends CommandLineUtils.StringStreamConsumer {
+    /**
+     * The default number of characters to retain.
+     */
+    static final int DEFAULT_LIMIT = 64 * 1024;
+
+    private final int limit;
+    private int retained;
+    private boolean truncated;
+
+    BoundedStringStreamConsumer() {
+        this(DEFAULT_LIMIT);
+    }
+
+    BoundedStringStreamConsumer(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void consumeLine(String line) {
+        if (retained + line.length() <= limit) {
+            super.consumeLine(line);
+            retained += line.length() + 1;
+        } else if (!truncated) {
+            truncated = true;
+            super.consumeLine("[further output truncated]");
+        }
+    }
+}
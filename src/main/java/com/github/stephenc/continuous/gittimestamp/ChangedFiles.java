@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The changed files of a working tree as they are streamed from git. Only aggregates are kept rather than the paths:
+ * the state of each directory, an order independent digest of the paths and their last modified timestamps that
+ * identifies the changes for the cache, and a 64-bit hash of each path so that the scan of the tracked files can skip
+ * the changed files without decoding every path.
+ */
+final class ChangedFiles implements PathConsumer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File root;
+    private final WorkingTreeState.Builder builder = new WorkingTreeState.Builder();
+    private long[] hashes = new long[16];
+    private int count;
+    private boolean sorted = true;
+    private long digest;
+    private long timestamps;
+
+    /**
+     * Constructor.
+     *
+     * @param root the root that the paths are relative to.
+     */
+    ChangedFiles(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Adds a changed file, checking its last modified timestamp on disk.
+     *
+     * @param buffer the buffer holding the UTF-8 encoded path of the file relative to the root.
+     * @param offset the offset of the path within the buffer.
+     * @param length the length of the path.
+     */
+    @Override
+    public void consume(byte[] buffer, int offset, int length) {
+        long lastModified = new File(root, new String(buffer, offset, length, UTF_8)).lastModified();
+        builder.changed(buffer, offset, length, lastModified);
+        long hash = hash(buffer, offset, length);
+        if (count == hashes.length) {
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        hashes[count++] = hash;
+        sorted = false;
+        // sums are independent of the order that the backend lists the files in
+        digest += hash;
+        timestamps += mix(hash ^ lastModified);
+    }
+
+    private static long hash(byte[] buffer, int offset, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= buffer[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * Returns the number of changed files.
+     *
+     * @return the number of changed files.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Checks whether a path is one of the changed files.
+     *
+     * @param buffer the buffer holding the UTF-8 encoded path relative to the root.
+     * @param offset the offset of the path within the buffer.
+     * @param length the length of the path.
+     * @return {@code true} if the path is one of the changed files.
+     */
+    boolean contains(byte[] buffer, int offset, int length) {
+        if (count == 0) {
+            return false;
+        }
+        if (!sorted) {
+            Arrays.sort(hashes, 0, count);
+            sorted = true;
+        }
+        return Arrays.binarySearch(hashes, 0, count, hash(buffer, offset, length)) >= 0;
+    }
+
+    /**
+     * Returns a digest that identifies the changed files and their last modified timestamps.
+     *
+     * @return the digest.
+     */
+    String getDigest() {
+        return count + ":" + Long.toHexString(digest) + ":" + Long.toHexString(timestamps);
+    }
+
+    /**
+     * Records the changed files in the state of the working tree.
+     *
+     * @param builder the builder of the state.
+     * @return the builder.
+     */
+    WorkingTreeState.Builder recordTo(WorkingTreeState.Builder builder) {
+        return builder.merge(this.builder);
+    }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * A {@link GitBackend} that forks the {@code git} executable for each query.
+ */
+class CliGitBackend implements GitBackend {
+    private static final String REFS_TAGS = "refs/tags/";
+    /**
+     * The number of arguments of a git command that are recorded with its timing.
+     */
+    private static final int MAX_TIMED_ARGUMENTS = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Whether the build of git has the builtin file system monitor, which is only checked once.
+     */
+    private static volatile Boolean fsmonitorDaemon;
+
+    private final AbstractGitOpsMojo mojo;
+    private final File basedir;
+    private File topLevel;
+    private File gitDir;
+    private Boolean partialClone;
+
+    public CliGitBackend(AbstractGitOpsMojo mojo, File basedir) {
+        this.mojo = mojo;
+        this.basedir = basedir;
+    }
+
+    @Override
+    public GitSnapshot.Key resolveSnapshotKey() throws ScmException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "rev-parse");
+        cl.createArg().setValue("--show-toplevel");
+        cl.createArg().setValue("--git-dir");
+        cl.createArg().setValue("HEAD");
+        CommandLineUtils.StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+        if (execute(cl, output, mojo.logDebugConsumer()) != 0) {
+            return null;
+        }
+        String[] lines = StringUtils.split(output.getOutput(), "\r\n");
+        if (lines.length < 3) {
+            mojo.getLog().debug("Could not parse 'rev-parse' output: " + output.getOutput());
+            return null;
+        }
+        gitDir = new File(lines[1].trim());
+        if (!gitDir.isAbsolute()) {
+            gitDir = new File(basedir, lines[1].trim());
+        }
+        topLevel = new File(lines[0].trim());
+        return new GitSnapshot.Key(topLevel, gitDir, lines[2].trim());
+    }
+
+    private File topLevel() throws ScmException {
+        if (topLevel == null) {
+            Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "rev-parse");
+            cl.createArg().setValue("--show-toplevel");
+            CommandLineUtils.StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+            if (execute(cl, output, mojo.logWarnConsumer()) != 0
+                    || StringUtils.isBlank(output.getOutput())) {
+                throw new ScmException("Could not find the top level of the git working tree containing " + basedir);
+            }
+            topLevel = new File(output.getOutput().trim());
+        }
+        return topLevel;
+    }
+
+    @Override
+    public long countCommits(String referenceCommit) throws ScmException, MojoExecutionException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "rev-list");
+        cl.createArg().setValue("--count");
+        if (StringUtils.isBlank(referenceCommit)) {
+            cl.createArg().setValue("HEAD");
+        } else {
+            cl.createArg().setValue(referenceCommit + "..HEAD");
+        }
+        CommandLineUtils.StringStreamConsumer countOutput = new CommandLineUtils.StringStreamConsumer();
+        execute(cl, countOutput, mojo.logWarnConsumer());
+        try {
+            return Long.parseLong(StringUtils.defaultIfBlank(countOutput.getOutput().trim(), "0"));
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException(
+                    "Could not parse revision count from 'rev-list --count' output: " + countOutput.getOutput(),
+                    e
+            );
+        }
+    }
+
+    @Override
+    public void walkLinearHistory(int limit, GitBackend.CommitVisitor visitor) throws ScmException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "rev-list");
+        cl.createArg().setValue("--first-parent");
+        cl.createArg().setValue("--max-count=" + limit);
+        cl.createArg().setValue("--format=%P");
+        cl.createArg().setValue("HEAD");
+        HistoryConsumer consumer = new HistoryConsumer(visitor);
+        execute(cl, consumer, mojo.logWarnConsumer());
+        consumer.finish();
+    }
+
+    @Override
+    public void walkChangedFiles(String referenceCommit, ChangeVisitor visitor) throws ScmException {
+        // from the top level, so that diff.relative cannot make the paths relative to the base directory
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(topLevel(), "log");
+        cl.createArg().setValue("--no-merges");
+        cl.createArg().setValue("--no-renames");
+        cl.createArg().setValue("--root");
+        cl.createArg().setValue("--name-only");
+        cl.createArg().setValue("-z");
+        cl.createArg().setValue("--format=%x01%ct");
+        if (StringUtils.isBlank(referenceCommit)) {
+            cl.createArg().setValue("HEAD");
+        } else {
+            cl.createArg().setValue(referenceCommit + "..HEAD");
+        }
+        cl.createArg().setValue("--");
+        int exitCode = execute(cl, (byte) 0, new ChangeConsumer(visitor), mojo.logWarnConsumer());
+        if (exitCode != 0) {
+            throw new ScmException("Could not walk the history of " + basedir + ", git exited with code " + exitCode);
+        }
+    }
+
+    @Override
+    public long getHeadCommitTime() throws ScmException, MojoExecutionException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "show");
+        cl.createArg().setValue("-s");
+        cl.createArg().setValue("--format=%ct");
+        cl.createArg().setValue("HEAD");
+        CommandLineUtils.StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+        if (execute(cl, output, mojo.logDebugConsumer()) != 0) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(output.getOutput().trim()) * 1000L;
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException(
+                    "Could not parse commit time from 'show' output: " + output.getOutput(),
+                    e
+            );
+        }
+    }
+
+    @Override
+    public void listFiles(File root, PathConsumer consumer) throws ScmException {
+        if (gitDir != null) {
+            // the index is the list of tracked files, reading it directly saves forking git ls-files
+            try {
+                String prefix = GitSnapshot.relativize(topLevel, root);
+                if (prefix != null) {
+                    Timings.Timing timing = mojo.getTimings().start("index", "list " + prefix);
+                    try {
+                        GitIndexReader.list(gitDir, prefix.getBytes(UTF_8), timing.counting(consumer));
+                    } finally {
+                        timing.stop();
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                mojo.getLog().debug("Could not read the git index, falling back to git ls-files", e);
+            }
+        }
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(root, "ls-files");
+        cl.createArg().setValue("-z");
+        execute(cl, (byte) 0, consumer, mojo.logDebugConsumer());
+    }
+
+    @Override
+    public void listChangedFiles(File root, PathFilter filter, PathConsumer consumer) throws ScmException {
+        String prefix;
+        try {
+            prefix = GitSnapshot.relativize(topLevel(), root);
+        } catch (IOException e) {
+            throw new ScmException(e.getMessage(), e);
+        }
+        if (prefix == null) {
+            throw new ScmException(root + " is not within the working tree " + topLevel);
+        }
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(root, "status");
+        cl.createArg().setValue("--porcelain=v2");
+        cl.createArg().setValue("-z");
+        cl.createArg().setValue("--untracked-files=no");
+        useFsmonitor(cl);
+        cl.createArg().setValue("--");
+        // git only refreshes and compares the files that the pathspecs select
+        for (String pathspec : filter.toPathspecs()) {
+            cl.createArg().setValue(pathspec);
+        }
+        execute(cl, (byte) 0, new StatusConsumer(prefix.getBytes(UTF_8), filter.filter(consumer)),
+                mojo.logWarnConsumer());
+    }
+
+    @Override
+    public boolean isStatusIncremental() throws ScmException {
+        if (!mojo.isFsmonitor()) {
+            return false;
+        }
+        if (fsmonitorDaemon == null) {
+            Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "version");
+            cl.createArg().setValue("--build-options");
+            CommandLineUtils.StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+            fsmonitorDaemon = execute(cl, output, mojo.logDebugConsumer()) == 0
+                    && output.getOutput().contains("feature: fsmonitor--daemon");
+            if (!fsmonitorDaemon) {
+                mojo.getLog().info("This build of git has no builtin file system monitor, "
+                        + "git status will check every tracked file");
+            }
+        }
+        return fsmonitorDaemon;
+    }
+
+    @Override
+    public boolean hasChangedFiles(File root, final String prefix, final PathFilter filter) throws ScmException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(root, "diff");
+        if (filter.isAll()) {
+            // git stops comparing at the first difference
+            cl.createArg().setValue("--quiet");
+        } else {
+            // the pathspecs only narrow down the files to compare, the filter decides
+            cl.createArg().setValue("--name-only");
+            cl.createArg().setValue("-z");
+        }
+        cl.createArg().setValue("--no-ext-diff");
+        useFsmonitor(cl);
+        cl.createArg().setValue("HEAD");
+        cl.createArg().setValue("--");
+        List<String> pathspecs = filter.toPathspecs();
+        if (!prefix.isEmpty() && ".".equals(pathspecs.get(0))) {
+            pathspecs.set(0, ":(literal)" + prefix);
+        }
+        for (String pathspec : pathspecs) {
+            cl.createArg().setValue(pathspec);
+        }
+        final byte[] directory = prefix.getBytes(UTF_8);
+        final boolean[] found = new boolean[1];
+        NulSeparatedOutput.Until consumer = new NulSeparatedOutput.Until() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                if (!found[0] && startsWith(buffer, offset, length, directory)) {
+                    found[0] = filter.matches(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public boolean isSatisfied() {
+                return found[0];
+            }
+        };
+        preventLazyFetch(cl);
+        Timings.Timing timing = mojo.getTimings().start("git", command(cl));
+        int exitCode;
+        try {
+            exitCode = NulSeparatedOutput.execute(cl, (byte) 0, consumer, mojo.logWarnConsumer(),
+                    new GitCommandLineLogger(mojo));
+        } finally {
+            timing.stop();
+        }
+        if (filter.isAll() && exitCode == 1) {
+            return true;
+        }
+        if (!found[0] && exitCode != 0) {
+            throw new ScmException("Could not compare the working tree of " + root + " with HEAD, git exited with "
+                    + "code " + exitCode);
+        }
+        return found[0];
+    }
+
+    @Override
+    public boolean hasUntrackedFiles(File root, final String prefix, final PathFilter filter) throws ScmException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(root, "ls-files");
+        cl.createArg().setValue("--others");
+        cl.createArg().setValue("--exclude-standard");
+        if (filter.isAll()) {
+            // one record per untracked directory, which git stops checking at its first file
+            cl.createArg().setValue("--directory");
+            cl.createArg().setValue("--no-empty-directory");
+        }
+        cl.createArg().setValue("-z");
+        useFsmonitor(cl);
+        cl.createArg().setValue("--");
+        List<String> pathspecs = filter.toPathspecs();
+        if (!prefix.isEmpty() && ".".equals(pathspecs.get(0))) {
+            pathspecs.set(0, ":(literal)" + prefix);
+        }
+        for (String pathspec : pathspecs) {
+            cl.createArg().setValue(pathspec);
+        }
+        final byte[] directory = prefix.getBytes(UTF_8);
+        final boolean[] found = new boolean[1];
+        NulSeparatedOutput.Until consumer = new NulSeparatedOutput.Until() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                if (found[0] || !startsWith(buffer, offset, length, directory)) {
+                    return;
+                }
+                if (length > 0 && buffer[offset + length - 1] == '/') {
+                    // an untracked directory
+                    length--;
+                }
+                found[0] = filter.matches(buffer, offset, length);
+            }
+
+            @Override
+            public boolean isSatisfied() {
+                return found[0];
+            }
+        };
+        preventLazyFetch(cl);
+        Timings.Timing timing = mojo.getTimings().start("git", command(cl));
+        int exitCode;
+        try {
+            exitCode = NulSeparatedOutput.execute(cl, (byte) 0, consumer, mojo.logWarnConsumer(),
+                    new GitCommandLineLogger(mojo));
+        } finally {
+            timing.stop();
+        }
+        if (!found[0] && exitCode != 0) {
+            throw new ScmException("Could not list the untracked files of " + root + ", git exited with code "
+                    + exitCode);
+        }
+        return found[0];
+    }
+
+    private static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lets a status query use the builtin file system monitor and the untracked cache if it can.
+     */
+    private void useFsmonitor(Commandline cl) throws ScmException {
+        if (isStatusIncremental()) {
+            // git starts the monitor if needed, then only checks the files changed since the token in the index
+            cl.addEnvironment("GIT_CONFIG_COUNT", "2");
+            cl.addEnvironment("GIT_CONFIG_KEY_0", "core.fsmonitor");
+            cl.addEnvironment("GIT_CONFIG_VALUE_0", "true");
+            cl.addEnvironment("GIT_CONFIG_KEY_1", "core.untrackedCache");
+            cl.addEnvironment("GIT_CONFIG_VALUE_1", "true");
+        }
+    }
+
+    @Override
+    public void listTags(Collection<String> names, Set<String> tags) throws ScmException {
+        if (names.isEmpty()) {
+            return;
+        }
+        try {
+            LocalTagReader reader = gitDir == null ? null : LocalTagReader.open(gitDir);
+            if (reader != null) {
+                Timings.Timing timing = mojo.getTimings().start("refs", "tags");
+                try {
+                    for (String name : names) {
+                        if (reader.exists(name)) {
+                            tags.add(name);
+                        }
+                    }
+                } finally {
+                    timing.stop();
+                }
+                return;
+            }
+        } catch (IOException e) {
+            throw new ScmException("Could not read the tags of " + gitDir, e);
+        }
+        // same record format as ls-remote so that one parser handles both
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "for-each-ref");
+        cl.createArg().setValue("--format=%(objectname) %(refname)");
+        for (String name : names) {
+            cl.createArg().setValue(REFS_TAGS + name);
+        }
+        // a pattern also matches the refs below it, e.g. refs/tags/<name>/more
+        Set<String> matched = new HashSet<>();
+        execute(cl, (byte) '\n', new TagRefParser(new TagNames(matched)), mojo.logWarnConsumer());
+        matched.retainAll(names);
+        tags.addAll(matched);
+    }
+
+    @Override
+    public void listRefs(String prefix, Map<String, String> refs) throws ScmException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "for-each-ref");
+        cl.createArg().setValue("--format=%(objectname) %(refname)");
+        cl.createArg().setValue(prefix);
+        CommandLineUtils.StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+        if (execute(cl, output, mojo.logWarnConsumer()) != 0) {
+            throw new ScmException("Could not list the refs below " + prefix);
+        }
+        for (String line : StringUtils.split(output.getOutput(), "\r\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0 && line.startsWith(prefix, space + 1)) {
+                refs.put(line.substring(space + 1 + prefix.length()), line.substring(0, space));
+            }
+        }
+    }
+
+    @Override
+    public void listRemoteTags(String url, Set<String> tags) throws ScmException {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "ls-remote");
+        cl.createArg().setValue("--tags");
+        cl.createArg().setValue("--quiet");
+        cl.createArg().setValue(url);
+        lsRemote(cl, url, tags);
+    }
+
+    private void lsRemote(Commandline cl, String url, Set<String> tags) throws ScmException {
+        int readTimeout = mojo.getRemoteReadTimeout();
+        if (readTimeout > 0) {
+            // git gives up on a transfer that is slower than the limit, in bytes per second, for that long
+            cl.addEnvironment("GIT_HTTP_LOW_SPEED_LIMIT", "1");
+            cl.addEnvironment("GIT_HTTP_LOW_SPEED_TIME", Integer.toString(readTimeout));
+        }
+        // collect separately so that a failed query adds nothing
+        Set<String> listed = new HashSet<>();
+        int exitCode = execute(cl, (byte) '\n', new TagRefParser(new TagNames(listed)), mojo.logWarnConsumer());
+        if (exitCode != 0) {
+            throw new ScmException("Could not list the tags of " + url + ", git exited with code " + exitCode);
+        }
+        tags.addAll(listed);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private int execute(Commandline cl, StreamConsumer output, CommandLineUtils.StringStreamConsumer err)
+            throws ScmException {
+        preventLazyFetch(cl);
+        Timings.Timing timing = mojo.getTimings().start("git", command(cl));
+        try {
+            int exitCode = GitCommandLineUtils.execute(cl, output, err, new GitCommandLineLogger(mojo));
+            if (output instanceof CommandLineUtils.StringStreamConsumer) {
+                timing.addBytes(((CommandLineUtils.StringStreamConsumer) output).getOutput().length());
+            }
+            return exitCode;
+        } finally {
+            timing.stop();
+        }
+    }
+
+    private int execute(Commandline cl, byte terminator, PathConsumer consumer,
+                        CommandLineUtils.StringStreamConsumer err) throws ScmException {
+        preventLazyFetch(cl);
+        Timings.Timing timing = mojo.getTimings().start("git", command(cl));
+        try {
+            return NulSeparatedOutput.execute(cl, terminator, timing.counting(consumer), err,
+                    new GitCommandLineLogger(mojo));
+        } finally {
+            timing.stop();
+        }
+    }
+
+    /**
+     * Stops git from fetching missing objects of a partial clone on demand, which would fetch the blobs or trees that
+     * the clone was filtered to leave out. None of the queries need them, so a query that would is a bug and should
+     * fail instead. Only git 2.44 and later honour this.
+     */
+    private void preventLazyFetch(Commandline cl) throws ScmException {
+        if (gitDir == null) {
+            // only rev-parse runs before the git directory is known
+            return;
+        }
+        if (partialClone == null) {
+            try {
+                partialClone = GitFiles.isPartialClone(gitDir);
+            } catch (IOException e) {
+                throw new ScmException("Could not read the configuration of " + gitDir, e);
+            }
+        }
+        if (partialClone) {
+            cl.addEnvironment("GIT_NO_LAZY_FETCH", "1");
+        }
+    }
+
+    private static String command(Commandline cl) {
+        StringBuilder command = new StringBuilder("git");
+        String[] arguments = cl.getArguments();
+        for (int i = 0; i < arguments.length; i++) {
+            if (i == MAX_TIMED_ARGUMENTS) {
+                command.append(" ... (").append(arguments.length - i).append(" more)");
+                break;
+            }
+            // keep any credentials in a remote URL out of the timing report
+            command.append(' ').append(arguments[i].replaceFirst("://[^/@]*@", "://***@"));
+        }
+        return command.toString();
+    }
+
+    /**
+     * Parses the records of {@code git status --porcelain=v2 -z}. Changed entries are of the form
+     * {@code 1 XY sub mH mI mW hH hI path}, renames and copies are of the form
+     * {@code 2 XY sub mH mI mW hH hI Xscore path} followed by an extra record holding the original path, and unmerged
+     * entries are of the form {@code u XY sub m1 m2 m3 mW h1 h2 h3 path}. As with the status command of the SCM
+     * provider, deletions are always changes while other entries are only changes if the file exists, which is known
+     * from the mode of the file in the working tree without needing to check the file.
+     */
+    private static class StatusConsumer implements PathConsumer {
+        private static final byte[] MISSING = "000000".getBytes(UTF_8);
+        private static final byte[] GITLINK = "160000".getBytes(UTF_8);
+        private final byte[] prefix;
+        private final PathConsumer consumer;
+        private boolean skipNext;
+
+        StatusConsumer(byte[] prefix, PathConsumer consumer) {
+            this.prefix = prefix;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            if (skipNext) {
+                skipNext = false;
+                return;
+            }
+            if (length < 4 || buffer[offset + 1] != ' ') {
+                return;
+            }
+            int modeField;
+            int pathField;
+            switch (buffer[offset]) {
+                case '1':
+                    modeField = 5;
+                    pathField = 8;
+                    break;
+                case '2':
+                    modeField = 5;
+                    pathField = 9;
+                    skipNext = true;
+                    break;
+                case 'u':
+                    modeField = 6;
+                    pathField = 10;
+                    break;
+                default:
+                    // untracked, ignored or a header
+                    return;
+            }
+            int end = offset + length;
+            int modeStart = field(buffer, offset, end, modeField);
+            int start = field(buffer, offset, end, pathField);
+            if (start == -1 || modeStart + MISSING.length > end) {
+                return;
+            }
+            if (end - start < prefix.length || !regionMatches(buffer, start, prefix, prefix.length)) {
+                return;
+            }
+            start += prefix.length;
+            byte x = buffer[offset + 2];
+            byte y = buffer[offset + 3];
+            if (x == 'D' || y == 'D' || !regionMatches(buffer, modeStart, MISSING, MISSING.length)
+                    && !regionMatches(buffer, modeStart, GITLINK, GITLINK.length)) {
+                consumer.consume(buffer, start, end - start);
+            }
+        }
+
+        /**
+         * Returns the offset of the n-th space separated field of a record.
+         */
+        private static int field(byte[] buffer, int offset, int end, int n) {
+            for (int i = offset; i < end && n > 0; i++) {
+                if (buffer[i] == ' ' && --n == 0) {
+                    return i + 1;
+                }
+            }
+            return n == 0 ? offset : -1;
+        }
+
+        private static boolean regionMatches(byte[] buffer, int offset, byte[] other, int length) {
+            for (int i = 0; i < length; i++) {
+                if (buffer[offset + i] != other[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parses the output of {@code git rev-list --format=%P}, which is a {@code commit <id>} line followed by a line
+     * with the ids of the parents, unless there are none.
+     */
+    private static class HistoryConsumer implements StreamConsumer {
+        private final GitBackend.CommitVisitor visitor;
+        private String commit;
+        private boolean stopped;
+
+        HistoryConsumer(GitBackend.CommitVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void consumeLine(String line) {
+            if (stopped) {
+                return;
+            }
+            if (line.startsWith("commit ")) {
+                // a commit without parents has no line for them
+                finish();
+                commit = line.substring("commit ".length()).trim();
+                return;
+            }
+            if (commit != null) {
+                String parents = line.trim();
+                stopped = !visitor.visit(commit, parents.isEmpty() ? 0 : StringUtils.split(parents, " ").length);
+                commit = null;
+            }
+        }
+
+        /**
+         * Visits the last commit if it had no line for its parents.
+         */
+        void finish() {
+            if (commit != null && !stopped) {
+                stopped = !visitor.visit(commit, 0);
+            }
+            commit = null;
+        }
+    }
+
+    /**
+     * Parses the output of {@code git log --format=%x01%ct --name-only -z}, where each commit is a record with the
+     * committer time after a {@code 0x01} marker and the first path after it starts with a newline.
+     */
+    private static class ChangeConsumer implements PathConsumer {
+        private final GitBackend.ChangeVisitor visitor;
+
+        ChangeConsumer(GitBackend.ChangeVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            if (buffer[offset] == 1) {
+                long commitTime = 0L;
+                for (int i = offset + 1; i < offset + length; i++) {
+                    commitTime = commitTime * 10 + (buffer[i] - '0');
+                }
+                visitor.commit(commitTime * 1000L);
+            } else if (buffer[offset] == '\n') {
+                if (length > 1) {
+                    visitor.consume(buffer, offset + 1, length - 1);
+                }
+            } else {
+                visitor.consume(buffer, offset, length);
+            }
+        }
+    }
+
+    private static class TagNames implements PathConsumer {
+        private final Set<String> tags;
+
+        TagNames(Set<String> tags) {
+            this.tags = tags;
+        }
+
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            tags.add(new String(buffer, offset, length, UTF_8));
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Checks the last modified timestamps of a stream of files, batched by directory. Each batch opens its directory once
+ * and checks its files relative to the open directory where the platform supports it, which avoids resolving the full
+ * path of every file. The batches are spread across a fork-join pool with a bounded number in flight, so memory use
+ * does not grow with the number of files, and each thread accumulates its own results so the threads never contend.
+ */
+final class FileTimestampScanner implements PathConsumer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * Batches with fewer files than this are not worth opening the directory for.
+     */
+    private static final int OPEN_DIRECTORY_THRESHOLD = 4;
+    /**
+     * The maximum number of files in a batch.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private final Path root;
+    private final ForkJoinPool pool;
+    private final Semaphore inFlight;
+    private final int permits;
+    private final List<Map<String, Long>> results = new ArrayList<>();
+    /**
+     * The results of the batches checked on the calling thread, which are kept out of {@link #threadResults} so that
+     * a long lived calling thread does not keep them reachable after the scan.
+     */
+    private final Map<String, Long> callerResults = new HashMap<>();
+    /**
+     * The results of the batches checked by each thread of the pool, which ends with the pool.
+     */
+    private final ThreadLocal<Map<String, Long>> threadResults = new ThreadLocal<Map<String, Long>>() {
+        @Override
+        protected Map<String, Long> initialValue() {
+            Map<String, Long> result = new HashMap<>();
+            synchronized (results) {
+                results.add(result);
+            }
+            return result;
+        }
+    };
+    private volatile RuntimeException failure;
+    private byte[] directory = new byte[256];
+    private int directoryLength = -1;
+    private String directoryName;
+    private List<String> names = new ArrayList<>(BATCH_SIZE);
+    private long files;
+
+    /**
+     * Constructor.
+     *
+     * @param root    the root of the scan.
+     * @param threads the number of threads to use, values less than {@code 1} use one per available processor.
+     */
+    FileTimestampScanner(Path root, int threads) {
+        this.root = root;
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.pool = threads == 1 ? null : new ForkJoinPool(threads);
+        this.permits = threads * 4;
+        this.inFlight = new Semaphore(permits);
+        results.add(callerResults);
+    }
+
+    /**
+     * Adds a file to be checked.
+     *
+     * @param buffer the buffer holding the UTF-8 encoded path of the file relative to the root of the scan.
+     * @param offset the offset of the path within the buffer.
+     * @param length the length of the path.
+     */
+    @Override
+    public void consume(byte[] buffer, int offset, int length) {
+        int slash = -1;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            if (buffer[i] == '/') {
+                slash = i;
+                break;
+            }
+        }
+        int dirLength = slash == -1 ? 0 : slash + 1 - offset;
+        if (dirLength != directoryLength || !regionMatches(buffer, offset, directory, dirLength)
+                || names.size() >= BATCH_SIZE) {
+            flush();
+            if (directory.length < dirLength) {
+                directory = new byte[Math.max(dirLength, directory.length * 2)];
+            }
+            System.arraycopy(buffer, offset, directory, 0, dirLength);
+            directoryLength = dirLength;
+            directoryName = new String(directory, 0, dirLength, UTF_8);
+        }
+        names.add(new String(buffer, offset + dirLength, length - dirLength, UTF_8));
+        files++;
+    }
+
+    /**
+     * Returns the number of files that have been added.
+     *
+     * @return the number of files.
+     */
+    long getFiles() {
+        return files;
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, byte[] other, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void flush() {
+        if (names.isEmpty()) {
+            return;
+        }
+        final String batchDirectory = directoryName;
+        final List<String> batchNames = names;
+        names = new ArrayList<>(BATCH_SIZE);
+        if (pool == null) {
+            record(callerResults, batchDirectory, lastModified(root.resolve(batchDirectory), batchNames));
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    record(threadResults.get(), batchDirectory, lastModified(root.resolve(batchDirectory), batchNames));
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    private static void record(Map<String, Long> result, String directory, long lastModified) {
+        Long current = result.get(directory);
+        if (current == null || current < lastModified) {
+            result.put(directory, lastModified);
+        }
+    }
+
+    /**
+     * Waits for all the files to be checked.
+     *
+     * @param builder the builder to record the most recent last modified timestamp of each directory in.
+     */
+    void finish(WorkingTreeState.Builder builder) {
+        flush();
+        if (pool != null) {
+            inFlight.acquireUninterruptibly(permits);
+            pool.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        synchronized (results) {
+            for (Map<String, Long> result : results) {
+                for (Map.Entry<String, Long> entry : result.entrySet()) {
+                    builder.directory(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Abandons the scan, e.g. because the listing of the files failed.
+     */
+    void abort() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long lastModified(Path directory, List<String> names) {
+        long lastModified = 0L;
+        if (names.size() >= OPEN_DIRECTORY_THRESHOLD) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                if (stream instanceof SecureDirectoryStream) {
+                    SecureDirectoryStream<Path> secure = (SecureDirectoryStream<Path>) stream;
+                    for (String name : names) {
+                        try {
+                            lastModified = Math.max(lastModified, secure
+                                    .getFileAttributeView(directory.getFileSystem().getPath(name),
+                                            BasicFileAttributeView.class)
+                                    .readAttributes()
+                                    .lastModifiedTime()
+                                    .toMillis());
+                        } catch (IOException e) {
+                            // a missing file does not contribute, as with File.lastModified()
+                        }
+                    }
+                    return lastModified;
+                }
+            } catch (IOException e) {
+                // fall back to checking each file by path
+            }
+        }
+        for (String name : names) {
+            try {
+                lastModified = Math.max(lastModified, Files.getLastModifiedTime(directory.resolve(name)).toMillis());
+            } catch (IOException e) {
+                // a missing file does not contribute, as with File.lastModified()
+            }
+        }
+        return lastModified;
+    }
+}
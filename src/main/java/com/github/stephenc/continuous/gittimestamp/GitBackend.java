@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.scm.ScmException;
+
+/**
+ * The queries that the GitOps mojos make against a git repository.
+ */
+interface GitBackend extends Closeable {
+
+    /**
+     * Resolves the current state of the repository.
+     *
+     * @return the key identifying the current state of the repository or {@code null} if it cannot be determined,
+     * e.g. because there are no commits yet.
+     * @throws ScmException if the repository could not be queried.
+     */
+    GitSnapshot.Key resolveSnapshotKey() throws ScmException;
+
+    /**
+     * Counts the commits reachable from {@code HEAD}.
+     *
+     * @param referenceCommit if not {@code null} then commits reachable from this commit will not be counted.
+     * @return the number of commits.
+     * @throws ScmException           if the repository could not be queried.
+     * @throws MojoExecutionException if the result could not be understood.
+     */
+    long countCommits(String referenceCommit) throws ScmException, MojoExecutionException;
+
+    /**
+     * Walks the history of {@code HEAD} by following the first parent of each commit.
+     *
+     * @param limit   the maximum number of commits to visit.
+     * @param visitor the visitor to receive the commits, starting with {@code HEAD}.
+     * @throws ScmException if the repository could not be queried.
+     */
+    void walkLinearHistory(int limit, CommitVisitor visitor) throws ScmException;
+
+    /**
+     * Walks the commits reachable from {@code HEAD}, other than merges, together with the files that each commit
+     * changed compared to its parent.
+     *
+     * @param referenceCommit if not {@code null} then commits reachable from this commit will not be visited.
+     * @param visitor         the visitor to receive the commits.
+     * @throws ScmException if the repository could not be queried.
+     */
+    void walkChangedFiles(String referenceCommit, ChangeVisitor visitor) throws ScmException;
+
+    /**
+     * Returns the committer time of {@code HEAD}.
+     *
+     * @return the committer time in milliseconds since the epoch or {@code 0L} if there are no commits yet.
+     * @throws ScmException           if the repository could not be queried.
+     * @throws MojoExecutionException if the result could not be understood.
+     */
+    long getHeadCommitTime() throws ScmException, MojoExecutionException;
+
+    /**
+     * Lists the tracked files within a directory of the working tree.
+     *
+     * @param root     the directory.
+     * @param consumer the consumer that will be given the path of each file relative to {@code root}.
+     * @throws ScmException if the repository could not be queried.
+     */
+    void listFiles(File root, PathConsumer consumer) throws ScmException;
+
+    /**
+     * Lists the changed files within a directory of the working tree, i.e. tracked files that are modified, added or
+     * removed. Untracked files are not considered changes.
+     *
+     * @param root     the directory.
+     * @param filter   selects the files to consider, by their path relative to {@code root}.
+     * @param consumer the consumer that will be given the path of each changed file relative to {@code root}.
+     * @throws ScmException if the repository could not be queried.
+     */
+    void listChangedFiles(File root, PathFilter filter, PathConsumer consumer) throws ScmException;
+
+    /**
+     * Checks whether {@link #listChangedFiles(File, PathFilter, PathConsumer)} only examines the files that changed
+     * since the previous query, e.g. through a file system monitor, rather than every tracked file.
+     *
+     * @return {@code true} if the changed files are found incrementally.
+     * @throws ScmException if the repository could not be queried.
+     */
+    boolean isStatusIncremental() throws ScmException;
+
+    /**
+     * Checks whether a directory of the working tree has any tracked files that differ from the current commit,
+     * stopping at the first one found. Use this rather than {@link #listChangedFiles(File, PathFilter, PathConsumer)}
+     * when only whether there are changes matters.
+     *
+     * @param root   the root that the paths are relative to.
+     * @param prefix the directory to check, relative to {@code root} and ending in {@code /}, or the empty string for
+     *               all of {@code root}.
+     * @param filter selects the files to consider, by their path relative to {@code root}.
+     * @return {@code true} if there is at least one changed file.
+     * @throws ScmException if the repository could not be queried.
+     */
+    boolean hasChangedFiles(File root, String prefix, PathFilter filter) throws ScmException;
+
+    /**
+     * Checks whether a directory of the working tree has any untracked files that are not ignored, stopping at the
+     * first one found.
+     *
+     * @param root   the root that the paths are relative to.
+     * @param prefix the directory to check, relative to {@code root} and ending in {@code /}, or the empty string for
+     *               all of {@code root}.
+     * @param filter selects the files to consider, by their path relative to {@code root}.
+     * @return {@code true} if there is at least one untracked file.
+     * @throws ScmException if the repository could not be queried.
+     */
+    boolean hasUntrackedFiles(File root, String prefix, PathFilter filter) throws ScmException;
+
+    /**
+     * Finds out which of the supplied tag names exist in the local repository.
+     *
+     * @param names the tag names to look for.
+     * @param tags  the set to add the tag names that exist to.
+     * @throws ScmException if the repository could not be queried.
+     */
+    void listTags(Collection<String> names, Set<String> tags) throws ScmException;
+
+    /**
+     * Lists the refs of the local repository below a prefix.
+     *
+     * @param prefix the prefix, e.g. {@code refs/commit-counts/}.
+     * @param refs   the map to add the names of the refs, without the prefix, and the object ids they point at to.
+     * @throws ScmException if the repository could not be queried.
+     */
+    void listRefs(String prefix, Map<String, String> refs) throws ScmException;
+
+    /**
+     * Lists the names of the tags of a remote repository.
+     *
+     * @param url  the URL of the remote repository.
+     * @param tags the set to add the tag names to.
+     * @throws ScmException if the remote repository could not be queried.
+     */
+    void listRemoteTags(String url, Set<String> tags) throws ScmException;
+
+    /**
+     * Receives the commits of a history walk.
+     */
+    interface CommitVisitor {
+        /**
+         * Visits a commit.
+         *
+         * @param id      the id of the commit.
+         * @param parents the number of parents of the commit.
+         * @return {@code true} to continue with the first parent of the commit, {@code false} to stop the walk.
+         */
+        boolean visit(String id, int parents);
+    }
+
+    /**
+     * Receives the commits of a history walk and the files that each commit changed. Each commit is followed by the
+     * paths of the files that it changed, relative to the top level of the working tree.
+     */
+    interface ChangeVisitor extends PathConsumer {
+        /**
+         * Visits a commit.
+         *
+         * @param commitTime the committer time of the commit in milliseconds since the epoch.
+         */
+        void commit(long commitTime);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Helpers for locating and interpreting the files within a git directory.
+ */
+final class GitFiles {
+    private static final Pattern OBJECT_FORMAT = Pattern.compile(
+            "^\\s*objectformat\\s*=\\s*(\\S+)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+    );
+
+    private static final Pattern PARTIAL_CLONE = Pattern.compile(
+            "^\\s*(partialclone\\s*=|promisor\\s*=\\s*true\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+    );
+
+    private GitFiles() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Returns the common directory of a git directory, which is where the objects, refs and configuration of the
+     * repository are stored. For all but linked worktrees this is the git directory itself.
+     *
+     * @param gitDir the git directory.
+     * @return the common directory.
+     * @throws IOException if the {@code commondir} file could not be read.
+     */
+    static File commonDir(File gitDir) throws IOException {
+        File commonDir = new File(gitDir, "commondir");
+        if (!commonDir.isFile()) {
+            return gitDir;
+        }
+        File path = new File(FileUtils.readFileToString(commonDir, "UTF-8").trim());
+        return path.isAbsolute() ? path : new File(gitDir, path.getPath());
+    }
+
+    /**
+     * Returns the length in bytes of the object ids used by a repository.
+     *
+     * @param gitDir the git directory.
+     * @return {@code 20} for SHA-1 repositories or {@code 32} for SHA-256 repositories.
+     * @throws IOException if the repository configuration could not be read.
+     */
+    static int objectIdLength(File gitDir) throws IOException {
+        File config = new File(commonDir(gitDir), "config");
+        if (config.isFile()) {
+            Matcher matcher = OBJECT_FORMAT.matcher(FileUtils.readFileToString(config, "UTF-8"));
+            if (matcher.find() && "sha256".equalsIgnoreCase(matcher.group(1))) {
+                return 32;
+            }
+        }
+        return 20;
+    }
+
+    /**
+     * Returns the commits at which the history of a shallow clone was cut off. Those commits have parents in the full
+     * history, but appear to have none in the clone.
+     *
+     * @param gitDir the git directory.
+     * @return the commits, which are empty unless the repository is a shallow clone.
+     * @throws IOException if the {@code shallow} file could not be read.
+     */
+    static Set<String> shallowCommits(File gitDir) throws IOException {
+        File shallow = new File(commonDir(gitDir), "shallow");
+        if (!shallow.isFile()) {
+            return Collections.emptySet();
+        }
+        Set<String> commits = new HashSet<>();
+        for (String line : FileUtils.readLines(shallow, "UTF-8")) {
+            if (!line.trim().isEmpty()) {
+                commits.add(line.trim());
+            }
+        }
+        return commits;
+    }
+
+    /**
+     * Checks whether a repository is a partial clone, i.e. has a promisor remote that git would fetch missing objects
+     * from on demand.
+     *
+     * @param gitDir the git directory.
+     * @return {@code true} if the repository is a partial clone.
+     * @throws IOException if the repository configuration could not be read.
+     */
+    static boolean isPartialClone(File gitDir) throws IOException {
+        File config = new File(commonDir(gitDir), "config");
+        return config.isFile() && PARTIAL_CLONE.matcher(FileUtils.readFileToString(config, "UTF-8")).find();
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the stat data of the entries in a git index file (versions 2, 3 and 4, including split indexes). The file is
+ * read in one go rather than memory mapped, as a live mapping stops git from replacing the index on Windows until the
+ * mapping is collected. The entries are visited straight from the bytes of the file, one at a time, without creating
+ * an object per entry. Only the entries of a split index, which are the few changed since its shared index was
+ * written, are held separately.
+ */
+final class GitIndexReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SIGNATURE = 0x44495243; // DIRC
+    private static final int LINK_EXTENSION = 0x6c696e6b; // link
+    private static final int FLAG_STAGE_MASK = 0x3000;
+    private static final int FLAG_EXTENDED = 0x4000;
+    private static final int EXTENDED_FLAG_SKIP_WORKTREE = 0x4000;
+    private static final int EXTENDED_FLAG_INTENT_TO_ADD = 0x2000;
+
+    private GitIndexReader() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Receives the entries of an index.
+     */
+    interface Visitor {
+        /**
+         * Visits an entry of the index. The buffer is reused for the next entry.
+         *
+         * @param buffer       the buffer holding the UTF-8 encoded path of the entry relative to the top level of the
+         *                     working tree.
+         * @param offset       the offset of the path within the buffer.
+         * @param length       the length of the path.
+         * @param lastModified the last modified timestamp recorded in the index.
+         * @param trusted      {@code false} if the recorded timestamp cannot be trusted, e.g. because the entry is
+         *                     racily clean, and the file must be checked on disk instead.
+         */
+        void visit(byte[] buffer, int offset, int length, long lastModified, boolean trusted);
+    }
+
+    /**
+     * Reads the index of a git directory.
+     *
+     * @param gitDir  the git directory.
+     * @param visitor the visitor to receive the entries in path order. Each path that is checked out is visited once,
+     *                a conflicted path with the first of its stages and as not trusted.
+     * @throws IOException if the index could not be read.
+     */
+    static void read(File gitDir, final Visitor visitor) throws IOException {
+        File indexFile = new File(gitDir, "index");
+        if (!indexFile.isFile()) {
+            return;
+        }
+        final long indexModified = Files.getLastModifiedTime(indexFile.toPath()).to(TimeUnit.NANOSECONDS);
+        entries(gitDir, indexFile, new EntryVisitor() {
+            private final Previous previous = new Previous();
+
+            @Override
+            public void visit(byte[] path, int length, long seconds, int nanos, int flags) {
+                if ((flags & EXTENDED_FLAG_SKIP_WORKTREE << 16) != 0 || previous.replace(path, length)) {
+                    // not checked out or another stage of a conflicted path
+                    return;
+                }
+                long modified = TimeUnit.SECONDS.toNanos(seconds) + nanos;
+                boolean trusted = (flags & FLAG_STAGE_MASK) == 0
+                        && (flags & EXTENDED_FLAG_INTENT_TO_ADD << 16) == 0
+                        && modified != 0L
+                        && modified < indexModified;
+                visitor.visit(path, 0, length, TimeUnit.NANOSECONDS.toMillis(modified), trusted);
+            }
+        });
+    }
+
+    /**
+     * Lists the paths of the entries of the index of a git directory that are checked out, without decoding them.
+     *
+     * @param gitDir   the git directory.
+     * @param prefix   the UTF-8 encoded prefix of the paths to list, which is removed from the listed paths.
+     * @param consumer the consumer of the paths in path order (each path is listed exactly once).
+     * @throws IOException if the index could not be read.
+     */
+    static void list(File gitDir, final byte[] prefix, final PathConsumer consumer) throws IOException {
+        File indexFile = new File(gitDir, "index");
+        if (!indexFile.isFile()) {
+            return;
+        }
+        entries(gitDir, indexFile, new EntryVisitor() {
+            private final Previous previous = new Previous();
+
+            @Override
+            public void visit(byte[] path, int length, long seconds, int nanos, int flags) {
+                if ((flags & EXTENDED_FLAG_SKIP_WORKTREE << 16) != 0 || previous.replace(path, length)) {
+                    // not checked out or another stage of a conflicted path
+                    return;
+                }
+                if (startsWith(path, length, prefix)) {
+                    consumer.consume(path, prefix.length, length - prefix.length);
+                }
+            }
+        });
+    }
+
+    private static boolean startsWith(byte[] path, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (path[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void entries(File gitDir, File indexFile, EntryVisitor visitor) throws IOException {
+        int idLength = GitFiles.objectIdLength(gitDir);
+        Index index = Index.open(indexFile, idLength);
+        if (index.sharedIndex == null) {
+            index.accept(visitor);
+            return;
+        }
+        File sharedFile = new File(indexFile.getParentFile(), "sharedindex." + index.sharedIndex);
+        Index shared = Index.open(sharedFile, idLength);
+        if (shared.sharedIndex != null) {
+            throw new IOException("Shared index " + sharedFile + " is itself split");
+        }
+        merge(shared, index, visitor);
+    }
+
+    /**
+     * Returns the trailing checksum of the index of a git directory, which changes whenever git writes the index.
+     *
+     * @param gitDir the git directory.
+     * @return the checksum in hex or {@code ""} if there is no index.
+     * @throws IOException if the index could not be read.
+     */
+    static String checksum(File gitDir) throws IOException {
+        File indexFile = new File(gitDir, "index");
+        if (!indexFile.isFile()) {
+            return "";
+        }
+        int idLength = GitFiles.objectIdLength(gitDir);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            if (raf.length() < 12 + idLength) {
+                throw new IOException(indexFile + " is not a git index");
+            }
+            byte[] checksum = new byte[idLength];
+            raf.seek(raf.length() - idLength);
+            raf.readFully(checksum);
+            return toHex(checksum, 0, idLength);
+        }
+    }
+
+    private static String toHex(byte[] bytes, int offset, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static int indexOfNul(ByteBuffer buffer, int offset, int end) throws IOException {
+        for (int i = offset; i < end; i++) {
+            if (buffer.get(i) == 0) {
+                return i;
+            }
+        }
+        throw new IOException("Unterminated path in git index");
+    }
+
+    /**
+     * Decodes an EWAH compressed bitmap as written by git.
+     */
+    private static BitSet readEwah(ByteBuffer buffer) {
+        BitSet result = new BitSet();
+        buffer.getInt(); // size in bits
+        int words = buffer.getInt();
+        int bit = 0;
+        int remaining = words;
+        while (remaining > 0) {
+            long marker = buffer.getLong();
+            remaining--;
+            long runLength = (marker >>> 1) & 0xffffffffL;
+            int literals = (int) (marker >>> 33);
+            if ((marker & 1L) != 0) {
+                result.set(bit, (int) (bit + runLength * 64));
+            }
+            bit += (int) (runLength * 64);
+            for (int i = 0; i < literals && remaining > 0; i++, remaining--) {
+                long word = buffer.getLong();
+                while (word != 0) {
+                    int low = Long.numberOfTrailingZeros(word);
+                    result.set(bit + low);
+                    word &= word - 1;
+                }
+                bit += 64;
+            }
+        }
+        buffer.getInt(); // position of the last marker word
+        return result;
+    }
+
+    /**
+     * Applies a split index to its shared index, visiting the entries in path order.
+     */
+    private static void merge(Index shared, Index split, final EntryVisitor visitor) throws IOException {
+        final Entries entries = split.load();
+        final BitSet replaced = split.replaced == null ? new BitSet() : split.replaced;
+        final BitSet deleted = split.deleted == null ? new BitSet() : split.deleted;
+        // the replacements come first, in the order of the entries they replace, then the added paths in path order
+        final int[] next = {0, replaced.cardinality()};
+        if (next[1] > entries.size) {
+            throw new IOException("Corrupt split index: " + next[1] + " replacements but " + entries.size + " entries");
+        }
+        shared.accept(new EntryVisitor() {
+            private int position;
+
+            @Override
+            public void visit(byte[] path, int length, long seconds, int nanos, int flags) throws IOException {
+                int i = position++;
+                if (deleted.get(i) && !replaced.get(i)) {
+                    return;
+                }
+                while (next[1] < entries.size
+                        && compare(entries.paths[next[1]], entries.paths[next[1]].length, entries.flags[next[1]],
+                        path, length, flags) < 0) {
+                    entries.accept(next[1]++, visitor);
+                }
+                if (replaced.get(i)) {
+                    int j = next[0]++;
+                    if (entries.paths[j].length != 0) {
+                        throw new IOException("Corrupt split index: replacement for entry " + i + " is invalid");
+                    }
+                    visitor.visit(path, length, entries.seconds[j], entries.nanos[j], entries.flags[j]);
+                } else {
+                    visitor.visit(path, length, seconds, nanos, flags);
+                }
+            }
+        });
+        while (next[1] < entries.size) {
+            entries.accept(next[1]++, visitor);
+        }
+    }
+
+    /**
+     * Compares two entries in the order of the index: by the bytes of the path, then by the stage.
+     */
+    private static int compare(byte[] x, int xLength, int xFlags, byte[] y, int yLength, int yFlags) {
+        for (int k = 0, n = Math.min(xLength, yLength); k < n; k++) {
+            int c = (x[k] & 0xff) - (y[k] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        if (xLength != yLength) {
+            return xLength - yLength;
+        }
+        return (xFlags & FLAG_STAGE_MASK) - (yFlags & FLAG_STAGE_MASK);
+    }
+
+    /**
+     * Receives the raw entries of an index.
+     */
+    private interface EntryVisitor {
+        /**
+         * Visits an entry. The path buffer is reused for the next entry.
+         */
+        void visit(byte[] path, int length, long seconds, int nanos, int flags) throws IOException;
+    }
+
+    /**
+     * The path of the previous entry, to skip the other stages of a conflicted path.
+     */
+    private static final class Previous {
+        private byte[] path = new byte[256];
+        private int length = -1;
+
+        /**
+         * Records a path.
+         *
+         * @return {@code true} if the path is the same as the previous one.
+         */
+        boolean replace(byte[] path, int length) {
+            if (length == this.length && regionMatches(path, this.path, length)) {
+                return true;
+            }
+            if (this.path.length < length) {
+                this.path = new byte[Math.max(length, this.path.length * 2)];
+            }
+            System.arraycopy(path, 0, this.path, 0, length);
+            this.length = length;
+            return false;
+        }
+
+        private static boolean regionMatches(byte[] a, byte[] b, int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * An index file, read into memory.
+     */
+    private static final class Index {
+        private final File file;
+        private final ByteBuffer buffer;
+        private final int idLength;
+        private final int version;
+        private final int count;
+        private String sharedIndex;
+        private BitSet deleted;
+        private BitSet replaced;
+
+        private Index(File file, ByteBuffer buffer, int idLength, int version, int count) {
+            this.file = file;
+            this.buffer = buffer;
+            this.idLength = idLength;
+            this.version = version;
+            this.count = count;
+        }
+
+        /**
+         * Reads an index file and its extensions.
+         */
+        static Index open(File file, int idLength) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.limit() < 12 + idLength || buffer.getInt(0) != SIGNATURE) {
+                throw new IOException(file + " is not a git index");
+            }
+            int version = buffer.getInt(4);
+            if (version < 2 || version > 4) {
+                throw new IOException(file + " uses unsupported index version " + version);
+            }
+            int count = buffer.getInt(8);
+            if (count < 0) {
+                throw new IOException(file + " is corrupt");
+            }
+            Index index = new Index(file, buffer, idLength, version, count);
+            index.readExtensions(index.accept(null));
+            return index;
+        }
+
+        private void readExtensions(int offset) throws IOException {
+            int end = buffer.limit() - idLength;
+            try {
+                while (offset + 8 <= end) {
+                    int signature = buffer.getInt(offset);
+                    int size = buffer.getInt(offset + 4);
+                    offset += 8;
+                    if (size < 0 || offset + size > end) {
+                        throw new IOException(file + " has a corrupt extension");
+                    }
+                    if (signature == LINK_EXTENSION) {
+                        StringBuilder id = new StringBuilder(idLength * 2);
+                        boolean none = true;
+                        for (int j = 0; j < idLength; j++) {
+                            id.append(Character.forDigit((buffer.get(offset + j) >> 4) & 0xf, 16));
+                            id.append(Character.forDigit(buffer.get(offset + j) & 0xf, 16));
+                            none &= buffer.get(offset + j) == 0;
+                        }
+                        // a null id means that every entry is in this index
+                        sharedIndex = none ? null : id.toString();
+                        if (!none && size > idLength) {
+                            ByteBuffer bitmaps = buffer.duplicate();
+                            bitmaps.position(offset + idLength);
+                            bitmaps.limit(offset + size);
+                            deleted = readEwah(bitmaps);
+                            replaced = readEwah(bitmaps);
+                        }
+                    }
+                    offset += size;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException(file + " is truncated", e);
+            }
+        }
+
+        /**
+         * Visits the entries.
+         *
+         * @param visitor the visitor or {@code null} to only find the end of the entries.
+         * @return the offset of the first extension.
+         */
+        int accept(EntryVisitor visitor) throws IOException {
+            int end = buffer.limit() - idLength;
+            int offset = 12;
+            byte[] path = new byte[256];
+            int pathLength = 0;
+            int fixed = 40 + idLength + 2;
+            try {
+                for (int i = 0; i < count; i++) {
+                    int start = offset;
+                    int flags = buffer.getShort(start + fixed - 2) & 0xffff;
+                    offset = start + fixed;
+                    if ((flags & FLAG_EXTENDED) != 0) {
+                        if (version < 3) {
+                            throw new IOException(file + " has extended flags in a version 2 index");
+                        }
+                        flags |= (buffer.getShort(offset) & 0xffff) << 16;
+                        offset += 2;
+                    }
+                    int nul;
+                    if (version == 4) {
+                        // prefix compressed: remove N bytes from the previous path and append the NUL terminated suffix
+                        int b = buffer.get(offset++) & 0xff;
+                        int strip = b & 0x7f;
+                        while ((b & 0x80) != 0) {
+                            b = buffer.get(offset++) & 0xff;
+                            strip = ((strip + 1) << 7) | (b & 0x7f);
+                        }
+                        if (strip > pathLength) {
+                            throw new IOException(file + " is corrupt at entry " + i);
+                        }
+                        nul = indexOfNul(buffer, offset, end);
+                        int keep = pathLength - strip;
+                        pathLength = keep + nul - offset;
+                        if (path.length < pathLength) {
+                            path = Arrays.copyOf(path, Math.max(pathLength, path.length * 2));
+                        }
+                        for (int j = offset; j < nul; j++) {
+                            path[keep++] = buffer.get(j);
+                        }
+                        offset = nul + 1;
+                    } else {
+                        nul = indexOfNul(buffer, offset, end);
+                        pathLength = nul - offset;
+                        if (visitor != null) {
+                            if (path.length < pathLength) {
+                                path = new byte[Math.max(pathLength, path.length * 2)];
+                            }
+                            for (int j = 0; j < pathLength; j++) {
+                                path[j] = buffer.get(offset + j);
+                            }
+                        }
+                        // entries are padded with 1-8 NULs to a multiple of 8 bytes
+                        offset = start + ((nul - start + 8) & ~7);
+                    }
+                    if (offset > end) {
+                        throw new IOException(file + " is corrupt at entry " + i);
+                    }
+                    if (visitor != null) {
+                        visitor.visit(path, pathLength, buffer.getInt(start + 8) & 0xffffffffL,
+                                buffer.getInt(start + 12), flags);
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException(file + " is truncated", e);
+            }
+            return offset;
+        }
+
+        /**
+         * Copies the entries into memory.
+         */
+        Entries load() throws IOException {
+            final Entries entries = new Entries(count);
+            accept(new EntryVisitor() {
+                @Override
+                public void visit(byte[] path, int length, long seconds, int nanos, int flags) {
+                    entries.add(Arrays.copyOf(path, length), seconds, nanos, flags);
+                }
+            });
+            return entries;
+        }
+    }
+
+    private static final class Entries {
+        private final byte[][] paths;
+        private final long[] seconds;
+        private final int[] nanos;
+        private final int[] flags;
+        private int size;
+
+        private Entries(int capacity) {
+            paths = new byte[capacity][];
+            seconds = new long[capacity];
+            nanos = new int[capacity];
+            flags = new int[capacity];
+        }
+
+        private void add(byte[] path, long seconds, int nanos, int flags) {
+            this.paths[size] = path;
+            this.seconds[size] = seconds;
+            this.nanos[size] = nanos;
+            this.flags[size] = flags;
+            size++;
+        }
+
+        private void accept(int i, EntryVisitor visitor) throws IOException {
+            visitor.visit(paths[i], paths[i].length, seconds[i], nanos[i], flags[i]);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.scm.ScmException;
+
+/**
+ * The state of a git working tree that is shared by all the executions within a single {@link MavenSession}. Each
+ * part of the snapshot is computed at most once, by whichever execution asks for it first, and every other execution
+ * (including those running concurrently in a {@code -T} build) waits for and reuses that result. In a long lived
+ * Maven process the snapshot can also be kept between sessions, see {@link RepositoryWatcher}.
+ */
+final class GitSnapshot {
+    /**
+     * The snapshots of each session, keyed by the request of the session as Maven 3.0 to 3.8 give each project a clone
+     * of the session but all the clones share the request. Weakly keyed so that they can be collected once the session
+     * is finished.
+     */
+    private static final Map<MavenExecutionRequest, ConcurrentMap<Key, GitSnapshot>> SESSIONS = new WeakHashMap<>();
+
+    private final Key key;
+    private final ConcurrentMap<String, FutureTask<Long>> commitCounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<WorkingTreeState>> workingTrees = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<ModuleHistory>> moduleHistories = new ConcurrentHashMap<>();
+    /**
+     * Whether each local tag name that has been looked up exists.
+     */
+    private final ConcurrentMap<String, Boolean> localTags = new ConcurrentHashMap<>();
+
+    GitSnapshot(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the snapshot for the supplied key within the supplied session.
+     *
+     * @param session the session (may be {@code null} in which case the snapshot will not be shared).
+     * @param key     the key (may be {@code null} in which case the snapshot will not be shared).
+     * @param warm    {@code true} to reuse the snapshot from a previous session of the same process.
+     * @param log     the log.
+     * @return the snapshot.
+     */
+    static GitSnapshot forSession(MavenSession session, Key key, boolean warm, Log log) {
+        if (session == null || session.getRequest() == null || key == null) {
+            return new GitSnapshot(key);
+        }
+        synchronized (SESSIONS) {
+            ConcurrentMap<Key, GitSnapshot> snapshots = SESSIONS.get(session.getRequest());
+            if (snapshots == null) {
+                snapshots = new ConcurrentHashMap<>();
+                SESSIONS.put(session.getRequest(), snapshots);
+            }
+            GitSnapshot snapshot = snapshots.get(key);
+            if (snapshot == null) {
+                // only checked once per session, so that every execution of the session sees the same state
+                snapshot = warm ? RepositoryWatcher.snapshot(key, log) : new GitSnapshot(key);
+                snapshots.put(key, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Registers the supplied snapshot under an additional key, typically because computing the snapshot caused git
+     * to refresh the index and thus changed the index state.
+     *
+     * @param session  the session.
+     * @param key      the additional key.
+     * @param snapshot the snapshot.
+     */
+    static void alias(MavenSession session, Key key, GitSnapshot snapshot) {
+        if (session == null || key == null || key.equals(snapshot.key)) {
+            return;
+        }
+        synchronized (SESSIONS) {
+            ConcurrentMap<Key, GitSnapshot> snapshots = SESSIONS.get(session.getRequest());
+            if (snapshots != null) {
+                snapshots.putIfAbsent(key, snapshot);
+            }
+        }
+        RepositoryWatcher.alias(key, snapshot);
+    }
+
+    /**
+     * Returns the key of this snapshot.
+     *
+     * @return the key of this snapshot or {@code null} if the snapshot is not shared.
+     */
+    Key getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the number of commits on the current branch since the supplied reference commit, computing it if this
+     * is the first request.
+     *
+     * @param referenceCommit the reference commit or {@code null}.
+     * @param loader          the function to compute the count.
+     * @return the number of commits.
+     * @throws ScmException           if the count could not be computed.
+     * @throws MojoExecutionException if the count could not be computed.
+     */
+    long getCommitCount(String referenceCommit, Callable<Long> loader) throws ScmException, MojoExecutionException {
+        return get(commitCounts, referenceCommit == null ? "" : referenceCommit, loader);
+    }
+
+    /**
+     * Returns the state of the working tree, computing it if this is the first request.
+     *
+     * @param id     identifies the root of the working tree that was scanned and how it was scanned.
+     * @param loader the function to compute the state.
+     * @return the working tree state.
+     * @throws ScmException           if the state could not be computed.
+     * @throws MojoExecutionException if the state could not be computed.
+     */
+    WorkingTreeState getWorkingTree(String id, Callable<WorkingTreeState> loader)
+            throws ScmException, MojoExecutionException {
+        return get(workingTrees, id, loader);
+    }
+
+    /**
+     * Returns the history of the module directories, computing it if this is the first request for those directories.
+     * The sessions that share a snapshot between builds may each have different modules.
+     *
+     * @param id       identifies the reference commit and the files that the history is of.
+     * @param prefixes the module directories.
+     * @param loader   the function to compute the history of the module directories.
+     * @return the history.
+     * @throws ScmException           if the history could not be computed.
+     * @throws MojoExecutionException if the history could not be computed.
+     */
+    ModuleHistory getModuleHistory(String id, Collection<String> prefixes, Callable<ModuleHistory> loader)
+            throws ScmException, MojoExecutionException {
+        return get(moduleHistories, id + " " + new TreeSet<>(prefixes), loader);
+    }
+
+    /**
+     * Adds those of the supplied tag names that exist in the local repository to the supplied set, only asking the
+     * backend about names that have not been looked up before.
+     *
+     * @param names   the tag names.
+     * @param tags    the set to add the existing tag names to.
+     * @param backend the backend.
+     * @throws ScmException if the tags could not be listed.
+     */
+    void listTags(Collection<String> names, Set<String> tags, GitBackend backend) throws ScmException {
+        Set<String> unknown = new HashSet<>();
+        for (String name : names) {
+            Boolean exists = localTags.get(name);
+            if (exists == null) {
+                unknown.add(name);
+            } else if (exists) {
+                tags.add(name);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return;
+        }
+        Set<String> found = new HashSet<>();
+        backend.listTags(unknown, found);
+        for (String name : unknown) {
+            localTags.put(name, found.contains(name));
+        }
+        tags.addAll(found);
+    }
+
+    /**
+     * Discards the working tree states, as files in the working tree may have changed since they were computed.
+     */
+    void invalidateWorkingTrees() {
+        workingTrees.clear();
+    }
+
+    /**
+     * Discards the local tags that have been looked up, as tags may have been created or deleted since.
+     */
+    void invalidateTags() {
+        localTags.clear();
+    }
+
+    /**
+     * Returns the path of the supplied file relative to the top level of a working tree in the form used by
+     * {@link WorkingTreeState}.
+     *
+     * @param topLevel the top level of the working tree.
+     * @param file     the file.
+     * @return the relative path ({@code ""} for the top level, otherwise ending with {@code /}) or {@code null} if the
+     * file is not within the working tree.
+     * @throws IOException if the canonical path could not be determined.
+     */
+    static String relativize(File topLevel, File file) throws IOException {
+        String root = topLevel.getCanonicalPath();
+        String path = file.getCanonicalPath();
+        if (path.equals(root)) {
+            return "";
+        }
+        if (!root.endsWith(File.separator)) {
+            root = root + File.separator;
+        }
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        return path.substring(root.length()).replace(File.separatorChar, '/') + '/';
+    }
+
+    private static <V> V get(ConcurrentMap<String, FutureTask<V>> values, String name, Callable<V> loader)
+            throws ScmException, MojoExecutionException {
+        FutureTask<V> task = new FutureTask<>(loader);
+        FutureTask<V> existing = values.putIfAbsent(name, task);
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            // allow a later execution to retry
+            values.remove(name, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof ScmException) {
+                throw (ScmException) cause;
+            }
+            if (cause instanceof MojoExecutionException) {
+                throw (MojoExecutionException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new MojoExecutionException(cause.getMessage(), cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Identifies the state of a git repository: the working tree, the commit that is checked out and the state of
+     * the index.
+     */
+    static final class Key {
+        private final File topLevel;
+        private final File gitDir;
+        private final String head;
+        private final long indexLength;
+        private final long indexLastModified;
+
+        Key(File topLevel, File gitDir, String head) {
+            this(topLevel, gitDir, head, new File(gitDir, "index"));
+        }
+
+        private Key(File topLevel, File gitDir, String head, File index) {
+            this.topLevel = topLevel;
+            this.gitDir = gitDir;
+            this.head = head;
+            this.indexLength = index.length();
+            this.indexLastModified = index.lastModified();
+        }
+
+        /**
+         * Returns a key for the same working tree and commit but with the current state of the index.
+         *
+         * @return a key for the current state of the index.
+         */
+        Key refresh() {
+            return new Key(topLevel, gitDir, head);
+        }
+
+        File getTopLevel() {
+            return topLevel;
+        }
+
+        File getGitDir() {
+            return gitDir;
+        }
+
+        String getHead() {
+            return head;
+        }
+
+        /**
+         * Returns the path of the supplied file relative to the top level of the working tree.
+         *
+         * @param file the file.
+         * @return the relative path or {@code null} if the file is not within the working tree.
+         * @throws IOException if the canonical path could not be determined.
+         * @see GitSnapshot#relativize(File, File)
+         */
+        String relativize(File file) throws IOException {
+            return GitSnapshot.relativize(topLevel, file);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return indexLength == that.indexLength
+                    && indexLastModified == that.indexLastModified
+                    && topLevel.equals(that.topLevel)
+                    && gitDir.equals(that.gitDir)
+                    && head.equals(that.head);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = topLevel.hashCode();
+            result = 31 * result + gitDir.hashCode();
+            result = 31 * result + head.hashCode();
+            result = 31 * result + (int) (indexLength ^ (indexLength >>> 32));
+            result = 31 * result + (int) (indexLastModified ^ (indexLastModified >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return topLevel + "@" + head;
+        }
+    }
+}
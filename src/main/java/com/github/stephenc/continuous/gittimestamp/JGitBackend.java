@@ -0,0 +1,447 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.scm.ScmException;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.StatusCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * A {@link GitBackend} that reads the repository in-process using JGit. Querying remote repositories is delegated to
+ * the {@code git} executable so that the user's credential helpers and SSH configuration continue to apply. Full
+ * commit counts are also delegated where the repository has a commit-graph, which this version of JGit cannot read.
+ */
+class JGitBackend implements GitBackend {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern SPARSE_INDEX = Pattern.compile(
+            "^\\s*sparse\\s*=\\s*true\\s*$", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+    );
+    private static final Pattern REF_STORAGE = Pattern.compile(
+            "^\\s*refstorage\\s*=\\s*+(?!files\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+    );
+    private static final Pattern FILTER_ATTRIBUTE = Pattern.compile("(^|\\s)filter=");
+    private static final byte[] ATTRIBUTES = "/.gitattributes".getBytes(UTF_8);
+    private final File basedir;
+    private final GitBackend cli;
+    private final Timings timings;
+    private Repository repository;
+
+    public JGitBackend(File basedir, GitBackend cli, Timings timings) {
+        this.basedir = basedir;
+        this.cli = cli;
+        this.timings = timings;
+    }
+
+    /**
+     * Checks whether the repository containing the supplied directory can be read by this backend. This version of
+     * JGit cannot follow linked worktrees, cannot read version 4, split or sparse indexes, SHA-256 object ids or
+     * reftable refs, and does not run the clean filters (e.g. of Git LFS) before comparing files, so would report every
+     * filtered file as modified. None of these are reported as errors by JGit, it just gets the answers wrong.
+     *
+     * @param basedir the directory.
+     * @return {@code true} if the repository can be read in-process.
+     */
+    static boolean isSupported(File basedir) {
+        File gitDir = new FileRepositoryBuilder().readEnvironment().findGitDir(basedir).getGitDir();
+        if (gitDir == null || new File(gitDir, "commondir").isFile()) {
+            // linked worktrees keep their objects and refs in a common directory
+            return false;
+        }
+        try {
+            File config = new File(gitDir, "config");
+            String configuration = config.isFile() ? FileUtils.readFileToString(config, "UTF-8") : "";
+            if (indexVersion(new File(gitDir, "index")) > 3
+                    || hasSharedIndex(gitDir)
+                    || SPARSE_INDEX.matcher(configuration).find()
+                    || GitFiles.objectIdLength(gitDir) != 20
+                    || REF_STORAGE.matcher(configuration).find()
+                    || new File(gitDir, "reftable").isDirectory()) {
+                return false;
+            }
+            File topLevel = gitDir.getParentFile();
+            return !hasFilters(new File(topLevel, ".gitattributes"))
+                    && !hasFilters(new File(gitDir, "info/attributes"))
+                    && !hasNestedFilters(gitDir, topLevel);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int indexVersion(File index) throws IOException {
+        if (!index.isFile()) {
+            return 2;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+            in.readInt();
+            return in.readInt();
+        }
+    }
+
+    private static boolean hasSharedIndex(File gitDir) {
+        String[] names = gitDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("sharedindex.")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasFilters(File attributes) throws IOException {
+        return attributes.isFile()
+                && FILTER_ATTRIBUTE.matcher(FileUtils.readFileToString(attributes, "UTF-8")).find();
+    }
+
+    /**
+     * Checks the {@code .gitattributes} files below the top level, which are found from the index rather than by
+     * walking the working tree.
+     */
+    private static boolean hasNestedFilters(File gitDir, File topLevel) throws IOException {
+        final List<String> paths = new ArrayList<>();
+        GitIndexReader.list(gitDir, new byte[0], new PathConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                if (endsWith(buffer, offset, length, ATTRIBUTES)) {
+                    paths.add(new String(buffer, offset, length, UTF_8));
+                }
+            }
+        });
+        for (String path : paths) {
+            if (hasFilters(new File(topLevel, path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean endsWith(byte[] buffer, int offset, int length, byte[] suffix) {
+        if (length < suffix.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer[offset + length - suffix.length + i] != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized Repository repository() throws ScmException {
+        if (repository == null) {
+            FileRepositoryBuilder builder = new FileRepositoryBuilder().readEnvironment().findGitDir(basedir);
+            if (builder.getGitDir() == null) {
+                throw new ScmException("Could not find a git repository containing " + basedir);
+            }
+            try {
+                repository = builder.setMustExist(true).build();
+            } catch (IOException e) {
+                throw new ScmException("Could not open git repository " + builder.getGitDir(), e);
+            }
+        }
+        return repository;
+    }
+
+    private String relativize(File root) throws ScmException {
+        Repository repository = repository();
+        if (repository.isBare()) {
+            throw new ScmException("Git repository " + repository.getDirectory() + " does not have a working tree");
+        }
+        try {
+            String prefix = GitSnapshot.relativize(repository.getWorkTree(), root);
+            if (prefix == null) {
+                throw new ScmException(root + " is not within the working tree " + repository.getWorkTree());
+            }
+            return prefix;
+        } catch (IOException e) {
+            throw new ScmException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public GitSnapshot.Key resolveSnapshotKey() throws ScmException {
+        Repository repository = repository();
+        if (repository.isBare()) {
+            return null;
+        }
+        try {
+            ObjectId head = repository.resolve(Constants.HEAD);
+            return head == null
+                    ? null
+                    : new GitSnapshot.Key(repository.getWorkTree(), repository.getDirectory(), head.name());
+        } catch (IOException e) {
+            throw new ScmException("Could not resolve HEAD", e);
+        }
+    }
+
+    @Override
+    public long countCommits(String referenceCommit) throws ScmException, MojoExecutionException {
+        Repository repository = repository();
+        File objects = new File(repository.getDirectory(), "objects");
+        if (new File(objects, "info/commit-graph").isFile() || new File(objects, "info/commit-graphs").isDirectory()) {
+            // git can count using the generation numbers without parsing each commit
+            return cli.countCommits(referenceCommit);
+        }
+        Timings.Timing timing = timings.start("jgit", "rev-list --count");
+        try (RevWalk walk = new RevWalk(repository)) {
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (head == null) {
+                return 0L;
+            }
+            walk.setRetainBody(false);
+            walk.markStart(walk.parseCommit(head));
+            if (StringUtils.isNotBlank(referenceCommit)) {
+                ObjectId reference = repository.resolve(referenceCommit + "^{commit}");
+                if (reference == null) {
+                    throw new MojoExecutionException("Could not resolve reference commit: " + referenceCommit);
+                }
+                walk.markUninteresting(walk.parseCommit(reference));
+            }
+            long count = 0L;
+            for (RevCommit ignored : walk) {
+                count++;
+            }
+            return count;
+        } catch (IOException e) {
+            throw new ScmException("Could not count commits", e);
+        } finally {
+            timing.stop();
+        }
+    }
+
+    @Override
+    public void walkLinearHistory(int limit, GitBackend.CommitVisitor visitor) throws ScmException {
+        Timings.Timing timing = timings.start("jgit", "rev-list --first-parent");
+        try {
+            Repository repository = repository();
+            try (RevWalk walk = new RevWalk(repository)) {
+                ObjectId head = repository.resolve(Constants.HEAD);
+                RevCommit commit = head == null ? null : walk.parseCommit(head);
+                for (int i = 0; commit != null && i < limit; i++) {
+                    if (!visitor.visit(commit.name(), commit.getParentCount()) || commit.getParentCount() == 0) {
+                        break;
+                    }
+                    commit = walk.parseCommit(commit.getParent(0));
+                }
+            } catch (IOException e) {
+                throw new ScmException("Could not walk the history of HEAD", e);
+            }
+        } finally {
+            timing.stop();
+        }
+    }
+
+    @Override
+    public void walkChangedFiles(String referenceCommit, ChangeVisitor visitor) throws ScmException {
+        // git diffs every commit of the history several times faster than this version of JGit
+        cli.walkChangedFiles(referenceCommit, visitor);
+    }
+
+    @Override
+    public long getHeadCommitTime() throws ScmException {
+        Timings.Timing timing = timings.start("jgit", "show -s");
+        try {
+            Repository repository = repository();
+            try (RevWalk walk = new RevWalk(repository)) {
+                ObjectId head = repository.resolve(Constants.HEAD);
+                return head == null ? 0L : walk.parseCommit(head).getCommitTime() * 1000L;
+            } catch (IOException e) {
+                throw new ScmException("Could not read the HEAD commit", e);
+            }
+        } finally {
+            timing.stop();
+        }
+    }
+
+    @Override
+    public void listFiles(File root, PathConsumer consumer) throws ScmException {
+        Timings.Timing timing = timings.start("jgit", "ls-files");
+        try {
+            byte[] prefix = Constants.encode(relativize(root));
+            try {
+                DirCache index = repository().readDirCache();
+                byte[] previous = null;
+                for (int i = 0, n = index.getEntryCount(); i < n; i++) {
+                    DirCacheEntry entry = index.getEntry(i);
+                    byte[] path = entry.getRawPath();
+                    if (entry.getStage() != DirCacheEntry.STAGE_0 && Arrays.equals(path, previous)) {
+                        // only report each conflicted path once, whichever stages it has
+                        continue;
+                    }
+                    previous = path;
+                    if (startsWith(path, prefix)) {
+                        consumer.consume(path, prefix.length, path.length - prefix.length);
+                    }
+                }
+            } catch (IOException e) {
+                throw new ScmException("Could not read the git index", e);
+            }
+        } finally {
+            timing.stop();
+        }
+    }
+
+    private static boolean startsWith(byte[] path, byte[] prefix) {
+        if (path.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (path[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void listChangedFiles(File root, PathFilter filter, PathConsumer consumer) throws ScmException {
+        if (cli.isStatusIncremental()) {
+            // this version of JGit always checks every tracked file
+            cli.listChangedFiles(root, filter, consumer);
+            return;
+        }
+        Timings.Timing timing = timings.start("jgit", "status");
+        try {
+            String prefix = relativize(root);
+            Status status;
+            try {
+                StatusCommand command = new Git(repository()).status();
+                // only compare the files below the literal start of the includes, the filter decides the rest
+                List<String> includes = filter.getIncludedPrefixes();
+                if (!includes.isEmpty()) {
+                    for (String include : includes) {
+                        command.addPath(prefix + include);
+                    }
+                } else if (!prefix.isEmpty()) {
+                    command.addPath(prefix.substring(0, prefix.length() - 1));
+                }
+                status = command.call();
+            } catch (GitAPIException e) {
+                throw new ScmException("Could not compute git status", e);
+            }
+            Set<String> paths = new TreeSet<>();
+            paths.addAll(status.getAdded());
+            paths.addAll(status.getChanged());
+            paths.addAll(status.getModified());
+            paths.addAll(status.getRemoved());
+            paths.addAll(status.getMissing());
+            paths.addAll(status.getConflicting());
+            PathConsumer filtered = filter.filter(consumer);
+            for (String path : paths) {
+                if (path.startsWith(prefix)) {
+                    byte[] bytes = Constants.encode(path.substring(prefix.length()));
+                    filtered.consume(bytes, 0, bytes.length);
+                }
+            }
+        } finally {
+            timing.stop();
+        }
+    }
+
+    @Override
+    public boolean isStatusIncremental() throws ScmException {
+        return cli.isStatusIncremental();
+    }
+
+    @Override
+    public boolean hasChangedFiles(File root, String prefix, PathFilter filter) throws ScmException {
+        // the index diff of this version of JGit compares every tracked file before it can be asked about any
+        return cli.hasChangedFiles(root, prefix, filter);
+    }
+
+    @Override
+    public boolean hasUntrackedFiles(File root, String prefix, PathFilter filter) throws ScmException {
+        // the status of this version of JGit walks every untracked directory to the end
+        return cli.hasUntrackedFiles(root, prefix, filter);
+    }
+
+    @Override
+    public void listTags(Collection<String> names, Set<String> tags) throws ScmException {
+        Timings.Timing timing = timings.start("jgit", "show-ref --tags");
+        try {
+            Repository repository = repository();
+            LocalTagReader reader = LocalTagReader.open(repository.getDirectory());
+            for (String name : names) {
+                if (reader != null ? reader.exists(name) : repository.exactRef(Constants.R_TAGS + name) != null) {
+                    tags.add(name);
+                }
+            }
+        } catch (IOException e) {
+            throw new ScmException("Could not list tags", e);
+        } finally {
+            timing.stop();
+        }
+    }
+
+    @Override
+    public void listRefs(String prefix, Map<String, String> refs) throws ScmException {
+        Timings.Timing timing = timings.start("jgit", "for-each-ref " + prefix);
+        try {
+            for (Map.Entry<String, Ref> ref : repository().getRefDatabase().getRefs(prefix).entrySet()) {
+                if (ref.getValue().getObjectId() != null) {
+                    refs.put(ref.getKey(), ref.getValue().getObjectId().name());
+                }
+            }
+        } catch (IOException e) {
+            throw new ScmException("Could not list the refs below " + prefix, e);
+        } finally {
+            timing.stop();
+        }
+    }
+
+    @Override
+    public void listRemoteTags(String url, Set<String> tags) throws ScmException {
+        cli.listRemoteTags(url, tags);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (repository != null) {
+            repository.close();
+            repository = null;
+        }
+        cli.close();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Answers whether tags exist in a repository by reading its ref storage directly. A tag is either a loose ref, which
+ * is a file under {@code refs/tags}, or a line of {@code packed-refs}. The packed refs file is read in one go rather
+ * than memory mapped, as a live mapping stops git from replacing it on Windows, and, as git writes it sorted, searched
+ * with a binary search, so no tag other than those asked about is ever parsed.
+ */
+final class LocalTagReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String REFS_TAGS = "refs/tags/";
+
+    private final File commonDir;
+    private final ByteBuffer packedRefs;
+    private final int recordsStart;
+    private final boolean sorted;
+
+    private LocalTagReader(File commonDir, ByteBuffer packedRefs, int recordsStart, boolean sorted) {
+        this.commonDir = commonDir;
+        this.packedRefs = packedRefs;
+        this.recordsStart = recordsStart;
+        this.sorted = sorted;
+    }
+
+    /**
+     * Opens the ref storage of a git directory.
+     *
+     * @param gitDir the git directory.
+     * @return the reader or {@code null} if the refs are stored in a format that cannot be read, i.e. a reftable.
+     * @throws IOException if the refs could not be read.
+     */
+    static LocalTagReader open(File gitDir) throws IOException {
+        File commonDir = GitFiles.commonDir(gitDir);
+        if (new File(commonDir, "reftable").isDirectory()) {
+            return null;
+        }
+        File file = new File(commonDir, "packed-refs");
+        if (!file.isFile()) {
+            return new LocalTagReader(commonDir, null, 0, true);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int recordsStart = 0;
+        boolean sorted = false;
+        if (buffer.limit() > 0 && buffer.get(0) == '#') {
+            // e.g. "# pack-refs with: peeled fully-peeled sorted "
+            recordsStart = lineEnd(buffer, 0);
+            byte[] header = new byte[recordsStart];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = buffer.get(i);
+            }
+            sorted = new String(header, UTF_8).contains(" sorted ");
+            recordsStart = Math.min(recordsStart + 1, buffer.limit());
+        }
+        return new LocalTagReader(commonDir, buffer, recordsStart, sorted);
+    }
+
+    /**
+     * Checks whether a tag exists.
+     *
+     * @param name the name of the tag.
+     * @return {@code true} if the tag exists.
+     */
+    boolean exists(String name) {
+        if (new File(commonDir, REFS_TAGS + name).isFile()) {
+            return true;
+        }
+        if (packedRefs == null) {
+            return false;
+        }
+        byte[] ref = (REFS_TAGS + name).getBytes(UTF_8);
+        return sorted ? search(ref) : scan(ref);
+    }
+
+    private boolean search(byte[] ref) {
+        int low = recordsStart;
+        int high = packedRefs.limit();
+        while (low < high) {
+            int start = lineStart(packedRefs, low + (high - low) / 2, recordsStart);
+            if (packedRefs.get(start) == '^' && start > recordsStart) {
+                // the peeled id of the ref on the previous line
+                start = lineStart(packedRefs, start - 1, recordsStart);
+            }
+            int end = lineEnd(packedRefs, start);
+            int cmp = compareRef(start, end, ref);
+            if (cmp == 0) {
+                return true;
+            }
+            if (cmp < 0) {
+                low = end + 1;
+                if (low < packedRefs.limit() && packedRefs.get(low) == '^') {
+                    low = lineEnd(packedRefs, low) + 1;
+                }
+            } else {
+                high = start;
+            }
+        }
+        return false;
+    }
+
+    private boolean scan(byte[] ref) {
+        for (int start = recordsStart; start < packedRefs.limit(); ) {
+            int end = lineEnd(packedRefs, start);
+            if (compareRef(start, end, ref) == 0) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Compares the ref name of a {@code <object id> <ref name>} line with a ref name, as unsigned bytes in the same way
+     * that git sorts the file.
+     */
+    private int compareRef(int start, int end, byte[] ref) {
+        int nameStart = start;
+        while (nameStart < end && packedRefs.get(nameStart) != ' ') {
+            nameStart++;
+        }
+        nameStart++;
+        if (nameStart >= end) {
+            // a peeled line or a corrupt line, sorts before every ref name
+            return -1;
+        }
+        int length = Math.min(end - nameStart, ref.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = (packedRefs.get(nameStart + i) & 0xff) - (ref[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return (end - nameStart) - ref.length;
+    }
+
+    private static int lineStart(ByteBuffer buffer, int position, int floor) {
+        while (position > floor && buffer.get(position - 1) != '\n') {
+            position--;
+        }
+        return position;
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int position) {
+        int limit = buffer.limit();
+        while (position < limit && buffer.get(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+}
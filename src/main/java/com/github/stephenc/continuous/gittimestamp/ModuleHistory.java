@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The number of commits and the most recent commit time of each module directory, accumulated from a single walk of
+ * the history. The module directories form a tree of path components, so each changed path is attributed to every
+ * module that contains it by following the path down the tree once, however many modules there are. Paths are
+ * relative to the top level of the working tree and use {@code /} as the separator. Not thread safe while visiting.
+ */
+final class ModuleHistory implements GitBackend.ChangeVisitor {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Node root = new Node();
+    private final Map<String, Module> modules = new HashMap<>();
+    private long commits;
+    private long commitTime;
+
+    /**
+     * Constructor.
+     *
+     * @param prefixes the module directories, each either {@code ""} for the top level or a relative path ending in
+     *                 {@code /}.
+     */
+    ModuleHistory(Collection<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (modules.containsKey(prefix)) {
+                continue;
+            }
+            Node node = root;
+            for (String component : prefix.split("/")) {
+                if (component.isEmpty()) {
+                    continue;
+                }
+                Node child = node.children.get(component);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(component, child);
+                }
+                node = child;
+            }
+            node.module = new Module();
+            modules.put(prefix, node.module);
+        }
+    }
+
+    /**
+     * Returns the module directories.
+     *
+     * @return the module directories.
+     */
+    Collection<String> getPrefixes() {
+        return modules.keySet();
+    }
+
+    /**
+     * Returns the number of commits that changed files within a module directory.
+     *
+     * @param prefix the module directory.
+     * @return the number of commits.
+     * @throws IllegalArgumentException if the directory is not one of the module directories.
+     */
+    long getCommitCount(String prefix) {
+        return module(prefix).commits;
+    }
+
+    /**
+     * Returns the most recent committer time of the commits that changed files within a module directory.
+     *
+     * @param prefix the module directory.
+     * @return the committer time in milliseconds since the epoch or {@code 0L} if no commit changed the directory.
+     * @throws IllegalArgumentException if the directory is not one of the module directories.
+     */
+    long getLastCommitTime(String prefix) {
+        return module(prefix).lastCommitTime;
+    }
+
+    /**
+     * Restores the history of a module directory as reported by {@link #accept(Visitor)}.
+     *
+     * @param prefix         the module directory.
+     * @param commits        the number of commits.
+     * @param lastCommitTime the most recent committer time.
+     * @throws IllegalArgumentException if the directory is not one of the module directories.
+     */
+    void restore(String prefix, long commits, long lastCommitTime) {
+        Module module = module(prefix);
+        module.commits = commits;
+        module.lastCommitTime = lastCommitTime;
+    }
+
+    /**
+     * Visits the history of each module directory, e.g. to persist it.
+     *
+     * @param visitor the visitor.
+     */
+    void accept(Visitor visitor) {
+        for (Map.Entry<String, Module> entry : modules.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue().commits, entry.getValue().lastCommitTime);
+        }
+    }
+
+    private Module module(String prefix) {
+        Module module = modules.get(prefix);
+        if (module == null) {
+            throw new IllegalArgumentException("Not a module directory: " + prefix);
+        }
+        return module;
+    }
+
+    @Override
+    public void commit(long commitTime) {
+        commits++;
+        this.commitTime = commitTime;
+    }
+
+    @Override
+    public void consume(byte[] buffer, int offset, int length) {
+        Node node = root;
+        attribute(node);
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end && !node.children.isEmpty(); i++) {
+            if (buffer[i] == '/') {
+                node = node.children.get(new String(buffer, start, i - start, UTF_8));
+                if (node == null) {
+                    return;
+                }
+                attribute(node);
+                start = i + 1;
+            }
+        }
+    }
+
+    private void attribute(Node node) {
+        Module module = node.module;
+        if (module != null && module.lastCommit != commits) {
+            // first changed path of this commit within the module
+            module.lastCommit = commits;
+            module.commits++;
+            module.lastCommitTime = Math.max(module.lastCommitTime, commitTime);
+        }
+    }
+
+    /**
+     * Receives the history of each module directory.
+     */
+    interface Visitor {
+        /**
+         * Visits a module directory.
+         *
+         * @param prefix         the module directory.
+         * @param commits        the number of commits that changed files within the directory.
+         * @param lastCommitTime the most recent committer time of those commits.
+         */
+        void visit(String prefix, long commits, long lastCommitTime);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Module module;
+    }
+
+    private static final class Module {
+        private long commits;
+        private long lastCommitTime;
+        /**
+         * The last commit that was attributed to the module, so that each commit is only counted once.
+         */
+        private long lastCommit;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.codehaus.plexus.util.cli.StreamPumper;
+
+/**
+ * Executes a git command whose output is a sequence of NUL terminated records (i.e. one run with {@code -z}), or of
+ * records with some other terminator, and hands each record to a {@link PathConsumer} straight from a reusable byte
+ * buffer.
+ */
+final class NulSeparatedOutput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private NulSeparatedOutput() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Executes the command.
+     *
+     * @param cl       the command.
+     * @param consumer the consumer of the NUL terminated records on standard output.
+     * @param err      the consumer of the lines of standard error.
+     * @param logger   the logger.
+     * @return the exit code of the command.
+     * @throws ScmException if the command could not be executed.
+     */
+    static int execute(Commandline cl, PathConsumer consumer, StreamConsumer err, ScmLogger logger)
+            throws ScmException {
+        return execute(cl, (byte) 0, consumer, err, logger);
+    }
+
+    /**
+     * Executes the command.
+     *
+     * @param cl         the command.
+     * @param terminator the byte that terminates each record, e.g. {@code '\n'} for a command without {@code -z}.
+     * @param consumer   the consumer of the records on standard output.
+     * @param err        the consumer of the lines of standard error.
+     * @param logger     the logger.
+     * @return the exit code of the command.
+     * @throws ScmException if the command could not be executed.
+     */
+    static int execute(Commandline cl, byte terminator, PathConsumer consumer, StreamConsumer err, ScmLogger logger)
+            throws ScmException {
+        return execute(cl, terminator, consumer, null, err, logger);
+    }
+
+    /**
+     * Executes the command until a consumer has seen enough, e.g. to stop at the first record. The command is killed
+     * once the consumer is satisfied, so that it does no more work than needed.
+     *
+     * @param cl         the command.
+     * @param terminator the byte that terminates each record.
+     * @param consumer   the consumer of the records on standard output.
+     * @param err        the consumer of the lines of standard error.
+     * @param logger     the logger.
+     * @return the exit code of the command or {@code 0} if the command was killed.
+     * @throws ScmException if the command could not be executed.
+     */
+    static int execute(Commandline cl, byte terminator, Until consumer, StreamConsumer err, ScmLogger logger)
+            throws ScmException {
+        return execute(cl, terminator, consumer, consumer, err, logger);
+    }
+
+    private static int execute(Commandline cl, byte terminator, PathConsumer consumer, Until until,
+                               StreamConsumer err, ScmLogger logger) throws ScmException {
+        if (logger.isInfoEnabled()) {
+            logger.info("Executing: " + cl);
+            logger.info("Working directory: " + cl.getWorkingDirectory().getAbsolutePath());
+        }
+        Process process;
+        try {
+            process = cl.execute();
+        } catch (CommandLineException e) {
+            throw new ScmException("Error while executing command.", e);
+        }
+        StreamPumper errorPumper = new StreamPumper(process.getErrorStream(), err);
+        errorPumper.start();
+        try {
+            process.getOutputStream().close();
+            if (!read(process.getInputStream(), terminator, consumer, until)) {
+                process.destroy();
+                process.waitFor();
+                errorPumper.join();
+                return 0;
+            }
+            int exitCode = process.waitFor();
+            errorPumper.join();
+            return exitCode;
+        } catch (IOException e) {
+            throw new ScmException("Error while reading command output.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScmException("Interrupted while executing command.", e);
+        } finally {
+            process.destroy();
+            errorPumper.close();
+        }
+    }
+
+    /**
+     * Reads NUL terminated records from a stream. A final record without a terminator is also passed to the consumer.
+     *
+     * @param in       the stream.
+     * @param consumer the consumer.
+     * @throws IOException if the stream could not be read.
+     */
+    static void read(InputStream in, PathConsumer consumer) throws IOException {
+        read(in, (byte) 0, consumer);
+    }
+
+    /**
+     * Reads terminated records from a stream. A final record without a terminator is also passed to the consumer.
+     *
+     * @param in         the stream.
+     * @param terminator the byte that terminates each record.
+     * @param consumer   the consumer.
+     * @throws IOException if the stream could not be read.
+     */
+    static void read(InputStream in, byte terminator, PathConsumer consumer) throws IOException {
+        read(in, terminator, consumer, null);
+    }
+
+    /**
+     * Reads terminated records from a stream until the stream ends or the supplied condition is satisfied.
+     *
+     * @return {@code false} if the reading stopped because the condition was satisfied.
+     */
+    private static boolean read(InputStream in, byte terminator, PathConsumer consumer, Until until)
+            throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        int start = 0;
+        int scan = 0;
+        while (channel.read(buffer) != -1) {
+            int end = buffer.position();
+            for (int i = scan; i < end; i++) {
+                if (bytes[i] == terminator) {
+                    consumer.consume(bytes, start, i - start);
+                    start = i + 1;
+                    if (until != null && until.isSatisfied()) {
+                        return false;
+                    }
+                }
+            }
+            if (start == 0 && end == bytes.length) {
+                // a single record larger than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(bytes.length * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+                bytes = buffer.array();
+            } else {
+                // move the partial record to the start of the buffer
+                System.arraycopy(bytes, start, bytes, 0, end - start);
+                buffer.position(end - start);
+            }
+            scan = buffer.position();
+            start = 0;
+        }
+        if (buffer.position() > 0) {
+            consumer.consume(bytes, 0, buffer.position());
+        }
+        return true;
+    }
+
+    /**
+     * A consumer that has seen enough once it is satisfied.
+     */
+    interface Until extends PathConsumer {
+        /**
+         * Checks whether the consumer has seen enough records.
+         *
+         * @return {@code true} to stop reading.
+         */
+        boolean isSatisfied();
+    }
+}
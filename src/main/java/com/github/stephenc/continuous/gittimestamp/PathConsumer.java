@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+/**
+ * Receives paths as raw bytes so that large listings can be processed without creating a {@link String} per path.
+ */
+interface PathConsumer {
+    /**
+     * Consumes a path.
+     *
+     * @param buffer the buffer holding the UTF-8 encoded path, which uses {@code /} as the separator. The buffer is
+     *               only valid for the duration of the call.
+     * @param offset the offset of the path within the buffer.
+     * @param length the length of the path.
+     */
+    void consume(byte[] buffer, int offset, int length);
+}
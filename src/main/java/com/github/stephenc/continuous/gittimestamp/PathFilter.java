@@ -0,0 +1,436 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects paths by include and exclude glob patterns, with the same syntax as the {@code glob} magic of git pathspecs
+ * so that the patterns can also be passed to git: {@code *} and {@code ?} do not match {@code /}, {@code **} matches
+ * across directories and {@code [...]} matches a character class. Unlike git, {@code ?} matches a whole character
+ * rather than a single byte of its UTF-8 encoding. A pattern that matches a directory matches every
+ * path below it. A path is selected if there are no includes or any include matches it, and no exclude matches it.
+ * <p>
+ * The patterns are compiled once and matched against the bytes of each path without decoding it. Patterns without
+ * wildcards form a trie that each path is followed down once, however many such patterns there are, and only the
+ * remaining patterns are matched one by one.
+ */
+final class PathFilter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * Selects every path.
+     */
+    static final PathFilter ALL = new PathFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private final List<String> includes;
+    private final List<String> excludes;
+    private final Patterns included;
+    private final Patterns excluded;
+
+    private PathFilter(List<String> includes, List<String> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.included = new Patterns(includes);
+        this.excluded = new Patterns(excludes);
+    }
+
+    /**
+     * Compiles a filter.
+     *
+     * @param includes the include patterns (may be {@code null}).
+     * @param excludes the exclude patterns (may be {@code null}).
+     * @return the filter.
+     * @throws IllegalArgumentException if a pattern is not a relative path within the root.
+     */
+    static PathFilter compile(Collection<String> includes, Collection<String> excludes) {
+        List<String> include = normalize(includes);
+        List<String> exclude = normalize(excludes);
+        return include.isEmpty() && exclude.isEmpty() ? ALL : new PathFilter(include, exclude);
+    }
+
+    private static List<String> normalize(Collection<String> patterns) {
+        List<String> result = new ArrayList<>();
+        if (patterns == null) {
+            return result;
+        }
+        for (String pattern : patterns) {
+            if (pattern == null || pattern.trim().isEmpty()) {
+                continue;
+            }
+            String normalized = pattern.trim().replace('\\', '/');
+            while (normalized.startsWith("/")) {
+                normalized = normalized.substring(1);
+            }
+            while (normalized.endsWith("/")) {
+                // a directory, which matches every path below it anyway
+                normalized = normalized.substring(0, normalized.length() - 1);
+            }
+            if (normalized.isEmpty() || normalized.equals("..") || normalized.startsWith("../")
+                    || normalized.contains("/../") || normalized.endsWith("/..")) {
+                throw new IllegalArgumentException("Not a path within the working tree: " + pattern);
+            }
+            result.add(normalized);
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if this filter selects every path.
+     *
+     * @return {@code true} if this filter selects every path.
+     */
+    boolean isAll() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * Checks whether a path is selected.
+     *
+     * @param buffer the buffer holding the UTF-8 encoded path, which uses {@code /} as the separator.
+     * @param offset the offset of the path.
+     * @param length the length of the path.
+     * @return {@code true} if the path is selected.
+     */
+    boolean matches(byte[] buffer, int offset, int length) {
+        return (includes.isEmpty() || included.matches(buffer, offset, length))
+                && (excludes.isEmpty() || !excluded.matches(buffer, offset, length));
+    }
+
+    /**
+     * Checks whether a path is selected.
+     *
+     * @param path the path, which uses {@code /} as the separator.
+     * @return {@code true} if the path is selected.
+     */
+    boolean matches(String path) {
+        if (isAll()) {
+            return true;
+        }
+        byte[] bytes = path.getBytes(UTF_8);
+        return matches(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Wraps a consumer so that it is only given the selected paths.
+     *
+     * @param consumer the consumer.
+     * @return the wrapped consumer.
+     */
+    PathConsumer filter(final PathConsumer consumer) {
+        if (isAll()) {
+            return consumer;
+        }
+        return new PathConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                if (matches(buffer, offset, length)) {
+                    consumer.consume(buffer, offset, length);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns git pathspecs that select at least the same paths, relative to the current directory of the git command.
+     * git matches {@code ?} against a single byte rather than a character, so the pathspecs use {@code *} instead and
+     * leave out the excludes with a {@code ?}. The paths that git reports still have to be matched against the filter.
+     * A pattern with wildcards also gets a pathspec for the paths below the directories that it matches.
+     *
+     * @return the pathspecs.
+     */
+    List<String> toPathspecs() {
+        List<String> pathspecs = new ArrayList<>();
+        if (includes.isEmpty()) {
+            pathspecs.add(".");
+        }
+        for (String include : includes) {
+            String widened = Patterns.widen(include);
+            addPathspec(pathspecs, ":(glob)", widened == null ? include : widened);
+        }
+        for (String exclude : excludes) {
+            if (Patterns.widen(exclude) == null) {
+                addPathspec(pathspecs, ":(glob,exclude)", exclude);
+            }
+        }
+        return pathspecs;
+    }
+
+    private static void addPathspec(List<String> pathspecs, String magic, String pattern) {
+        pathspecs.add(magic + pattern);
+        if (!Patterns.isLiteral(pattern)) {
+            // git only matches the paths below a directory by its name, not by a pattern that matches the directory
+            pathspecs.add(magic + pattern + "/**");
+        }
+    }
+
+    /**
+     * Returns the paths that every selected path is at or below: the leading directories of each include up to its
+     * first wildcard, or the whole include if it has none. Lets a query that cannot take the patterns themselves at
+     * least skip the paths that no include can match.
+     *
+     * @return the paths, or an empty list if the selected paths can be anywhere.
+     */
+    List<String> getIncludedPrefixes() {
+        List<String> prefixes = new ArrayList<>();
+        for (String include : includes) {
+            int end = include.length();
+            for (int i = 0; i < include.length(); i++) {
+                if (Patterns.isWildcard(include.charAt(i))) {
+                    end = include.lastIndexOf('/', i);
+                    break;
+                }
+            }
+            if (end <= 0) {
+                // the first directory already has a wildcard
+                return Collections.emptyList();
+            }
+            prefixes.add(include.substring(0, end));
+        }
+        return prefixes;
+    }
+
+    /**
+     * Returns a description of the filter that identifies the paths it selects, e.g. for use in a cache key.
+     *
+     * @return the description, which is empty for {@link #ALL}.
+     */
+    @Override
+    public String toString() {
+        if (isAll()) {
+            return "";
+        }
+        return "includes " + includes + " excludes " + excludes;
+    }
+
+    /**
+     * A compiled set of patterns.
+     */
+    private static final class Patterns {
+        private final Node literals = new Node();
+        private final List<byte[]> globs = new ArrayList<>();
+
+        Patterns(List<String> patterns) {
+            for (String pattern : patterns) {
+                byte[] bytes = pattern.getBytes(UTF_8);
+                if (isLiteral(pattern)) {
+                    Node node = literals;
+                    for (byte b : bytes) {
+                        Node child = node.children.get(b);
+                        if (child == null) {
+                            child = new Node();
+                            node.children.put(b, child);
+                        }
+                        node = child;
+                    }
+                    node.terminal = true;
+                } else {
+                    globs.add(bytes);
+                }
+            }
+        }
+
+        static boolean isLiteral(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                if (isWildcard(pattern.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean isWildcard(char c) {
+            switch (c) {
+                case '*':
+                case '?':
+                case '[':
+                case '\\':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        boolean matches(byte[] buffer, int offset, int length) {
+            int end = offset + length;
+            Node node = literals;
+            for (int i = offset; i <= end && node != null; i++) {
+                if (node.terminal && (i == end || buffer[i] == '/')) {
+                    // the path or one of its directories
+                    return true;
+                }
+                node = i < end ? node.children.get(buffer[i]) : null;
+            }
+            for (byte[] glob : globs) {
+                for (int i = offset; i <= end; i++) {
+                    if ((i == end || buffer[i] == '/') && glob(glob, 0, buffer, offset, i)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean glob(byte[] pattern, int p, byte[] text, int t, int end) {
+            while (p < pattern.length) {
+                byte c = pattern[p];
+                if (c == '*') {
+                    if (p + 1 < pattern.length && pattern[p + 1] == '*') {
+                        int next = p + 2;
+                        if (next < pattern.length && pattern[next] == '/') {
+                            // zero or more whole directories
+                            if (glob(pattern, next + 1, text, t, end)) {
+                                return true;
+                            }
+                            for (int i = t; i < end; i++) {
+                                if (text[i] == '/' && glob(pattern, next + 1, text, i + 1, end)) {
+                                    return true;
+                                }
+                            }
+                            return false;
+                        }
+                        for (int i = t; i <= end; i++) {
+                            if (glob(pattern, next, text, i, end)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                    for (int i = t; i <= end; i++) {
+                        if (glob(pattern, p + 1, text, i, end)) {
+                            return true;
+                        }
+                        if (i < end && text[i] == '/') {
+                            return false;
+                        }
+                    }
+                    return false;
+                }
+                if (t >= end || text[t] == '/' && c != '/') {
+                    return false;
+                }
+                if (c == '?') {
+                    t = nextCharacter(text, t, end);
+                    p++;
+                } else if (c == '[') {
+                    int close = classEnd(pattern, p);
+                    if (close < 0) {
+                        // not a class, a literal [
+                        if (text[t] != c) {
+                            return false;
+                        }
+                        t++;
+                        p++;
+                    } else {
+                        if (!inClass(pattern, p + 1, close, text[t])) {
+                            return false;
+                        }
+                        t++;
+                        p = close + 1;
+                    }
+                } else {
+                    if (c == '\\' && p + 1 < pattern.length) {
+                        c = pattern[++p];
+                    }
+                    if (text[t] != c) {
+                        return false;
+                    }
+                    t++;
+                    p++;
+                }
+            }
+            return t == end;
+        }
+
+        private static int nextCharacter(byte[] text, int t, int end) {
+            t++;
+            while (t < end && (text[t] & 0xC0) == 0x80) {
+                // a UTF-8 continuation byte
+                t++;
+            }
+            return t;
+        }
+
+        /**
+         * Replaces every {@code ?} wildcard of a pattern by {@code *}.
+         *
+         * @return the widened pattern or {@code null} if the pattern has no {@code ?} wildcard.
+         */
+        static String widen(String pattern) {
+            byte[] bytes = pattern.getBytes(UTF_8);
+            boolean widened = false;
+            for (int p = 0; p < bytes.length; p++) {
+                if (bytes[p] == '\\') {
+                    p++;
+                } else if (bytes[p] == '[') {
+                    p = Math.max(p, classEnd(bytes, p));
+                } else if (bytes[p] == '?') {
+                    bytes[p] = '*';
+                    widened = true;
+                }
+            }
+            return widened ? new String(bytes, UTF_8) : null;
+        }
+
+        private static int classEnd(byte[] pattern, int p) {
+            int i = p + 1;
+            if (i < pattern.length && (pattern[i] == '!' || pattern[i] == '^')) {
+                i++;
+            }
+            if (i < pattern.length && pattern[i] == ']') {
+                // a leading ] is a member of the class
+                i++;
+            }
+            for (; i < pattern.length; i++) {
+                if (pattern[i] == ']') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean inClass(byte[] pattern, int start, int end, byte b) {
+            boolean negated = pattern[start] == '!' || pattern[start] == '^';
+            int i = negated ? start + 1 : start;
+            boolean found = false;
+            while (i < end) {
+                if (i + 2 < end && pattern[i + 1] == '-') {
+                    if ((b & 0xFF) >= (pattern[i] & 0xFF) && (b & 0xFF) <= (pattern[i + 2] & 0xFF)) {
+                        found = true;
+                    }
+                    i += 3;
+                } else {
+                    if (pattern[i] == b) {
+                        found = true;
+                    }
+                    i++;
+                }
+            }
+            return found != negated;
+        }
+    }
+
+    private static final class Node {
+        private final Map<Byte, Node> children = new HashMap<>();
+        private boolean terminal;
+    }
+}
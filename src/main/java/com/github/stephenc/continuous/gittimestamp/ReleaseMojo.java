@@ -18,12 +18,21 @@ package com.github.stephenc.continuous.gittimestamp;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -33,17 +42,8 @@ import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.scm.ScmException;
 import org.apache.maven.scm.manager.NoSuchScmProviderException;
-import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
 import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
 import org.apache.maven.scm.repository.ScmRepository;
-import org.codehaus.plexus.interpolation.InterpolationException;
-import org.codehaus.plexus.interpolation.Interpolator;
-import org.codehaus.plexus.interpolation.PrefixAwareRecursionInterceptor;
-import org.codehaus.plexus.interpolation.PrefixedPropertiesValueSource;
-import org.codehaus.plexus.interpolation.RecursionInterceptor;
-import org.codehaus.plexus.interpolation.StringSearchInterpolator;
-import org.codehaus.plexus.util.cli.Commandline;
-import org.codehaus.plexus.util.cli.StreamConsumer;
 
 /**
  * Generates a release version based on the number of commits in the current Git branch and available tags. This mojo is
@@ -58,7 +58,10 @@ import org.codehaus.plexus.util.cli.StreamConsumer;
       requiresProject = true,
       threadSafe = true)
 public class ReleaseMojo extends AbstractGitOpsMojo {
-    private static final String REFS_TAGS = "refs/tags/";
+    /**
+     * The number of candidate tag names in the first query of the tags.
+     */
+    private static final int INITIAL_CANDIDATE_BATCH = 4;
     /**
      * The name of the property to populate with the release version.
      */
@@ -109,10 +112,46 @@ public class ReleaseMojo extends AbstractGitOpsMojo {
     @Parameter(defaultValue = "-SNAPSHOT", property = "snapshotText")
     private String snapshotText;
     /**
-     * Disables querying the remote tags and instead only queries local tags.
+     * Disables querying the remote tags and instead only queries local tags. Local tags are looked up by name in the
+     * {@code packed-refs} file and {@code refs/tags} directory, without listing every tag.
      */
     @Parameter(property = "localTags")
     private boolean localTags;
+    /**
+     * The number of seconds for which a complete list of the tags of the remote repository is reused. The list is
+     * kept in the persistent cache and, until it expires, the version is worked out from it without querying the
+     * remote repository, so a tag that has since been pushed by someone else is not seen.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "0", property = "remoteTagCacheTtl")
+    private long remoteTagCacheTtl;
+    /**
+     * When Maven is offline or the remote repository cannot be queried, work out the version from the tags of the
+     * remote repository as last seen and the local tags, rather than failing. The chosen tag name may then already
+     * exist in the remote repository.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "remoteTagFallback")
+    private boolean remoteTagFallback;
+    /**
+     * The number of milliseconds to wait for the remote repository, counted from the start of the execution as a
+     * complete listing of the tags starts straight away, or {@code 0} to wait for as long as it takes. If the remote
+     * repository does not answer in time, the execution fails unless {@code remoteTagFallback} is set.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "120000", property = "remoteTagTimeout")
+    private long remoteTagTimeout;
+    /**
+     * The number of seconds for which a query of the remote repository over HTTP may stall, while connecting or
+     * while reading, before git gives up on it, or {@code 0} to use the {@code http.lowSpeedTime} setting of git.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "30", property = "remoteTagReadTimeout")
+    private int remoteTagReadTimeout;
     /**
      * Format to use when generating the tag name if none is specified. Mirrors {@code release:prepare}'s property.
      */
@@ -138,28 +177,36 @@ public class ReleaseMojo extends AbstractGitOpsMojo {
             throw new MojoFailureException("The current project version is \'" + project.getVersion()
                     + "\' which does not end with the expected text to be replaced: \'" + snapshotText + "\'");
         }
+        RemoteTagQuery remote = null;
         try {
             ScmRepository repository = getScmRepository();
             getValidatedScmProvider(repository);
 
-            // now count how many commits on the current branch
-            final long count = getCurrentBranchCommitCount();
-
-            final Set<String> tags = new HashSet<>();
-            Commandline cl;
-            StreamConsumer consumer;
+            String remoteUrl = null;
             if (!localTags && repository.getProviderRepository() instanceof GitScmProviderRepository) {
-                cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "ls-remote");
-                cl.createArg().setValue("--tags");
-                cl.createArg().setValue("--quiet");
-                cl.createArg().setValue(((GitScmProviderRepository) repository.getProviderRepository()).getFetchUrl());
-                consumer = new LsRemoteTagsConsumer(tags);
-            } else {
-                cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "tag");
-                cl.createArg().setValue("--list");
-                consumer = new TagListConsumer(tags);
+                remoteUrl = ((GitScmProviderRepository) repository.getProviderRepository()).getFetchUrl();
+            }
+            if (remoteUrl != null) {
+                // a complete listing does not depend on the count, so it overlaps with counting the commits
+                remote = new RemoteTagQuery(remoteUrl);
+            }
+            // nor does the modified state of the working tree, which only needs to be found before the end
+            final boolean untracked = isUntrackedDirty();
+            final GitSnapshot.Key key = getGitSnapshot().getKey();
+            Future<Boolean> modified = null;
+            if (key != null) {
+                modified = startInBackground(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        GitBackend git = getGitBackend();
+                        return git.hasChangedFiles(key.getTopLevel(), "", PathFilter.ALL)
+                                || untracked && git.hasUntrackedFiles(key.getTopLevel(), "", PathFilter.ALL);
+                    }
+                });
             }
-            GitCommandLineUtils.execute(cl, consumer, logWarnConsumer(), new GitCommandLineLogger(this));
+
+            // now count how many commits on the current branch
+            final long count = getCurrentBranchCommitCount();
 
             String bareVersion = StringUtils.removeEnd(project.getVersion(), snapshotText);
             if (!bareVersion.endsWith(".") && !bareVersion.endsWith("-")) {
@@ -167,19 +214,32 @@ public class ReleaseMojo extends AbstractGitOpsMojo {
                 bareVersion = bareVersion + ".";
             }
             final String baseVersion = bareVersion + count;
-            Iterator<String> suggestedVersion = new CandidateVersionsIterator(baseVersion, alwaysIncludeRepeatCount);
-            String version;
-            String suggestedTagName;
-            while (true) {
-                version = suggestedVersion.next();
-                suggestedTagName = tagNameFromVersion(version);
-
-                if (!tags.contains(suggestedTagName)) {
-                    getLog().info(
-                            "Could not find a tag called " + suggestedTagName + " recommending version " + version);
-                    break;
+            TagNameTemplate template = TagNameTemplate.compile(tagNameFormat, project.getGroupId(),
+                    project.getArtifactId());
+            Set<String> tags;
+            Timings.Timing timing = getTimings().start("tags", remoteUrl == null ? "local" : "remote");
+            try {
+                if (remote == null) {
+                    // local tags are looked up directly, so there is no need to list them all
+                    tags = findLocalTags(null, template, baseVersion);
+                } else {
+                    tags = remote.find(template, baseVersion);
                 }
-                getLog().debug("Skipping " + version + " as there is already a tag named " + suggestedTagName);
+            } finally {
+                timing.stop();
+            }
+            TagIndex index = new TagIndex();
+            indexTags(template, baseVersion, tags, index);
+            String version = index.nextFree(baseVersion, alwaysIncludeRepeatCount);
+            String suggestedTagName = template.render(version);
+            if (template.isConstant() && tags.contains(suggestedTagName)) {
+                throw new MojoFailureException("The tag name format '" + tagNameFormat
+                        + "' does not include the version and there is already a tag named " + suggestedTagName);
+            }
+            getLog().info("Could not find a tag called " + suggestedTagName + " recommending version " + version);
+            if (modified != null && await(modified)) {
+                getLog().warn("The working tree has uncommitted changes, they are not part of the commits that "
+                        + "version " + version + " is worked out from");
             }
             getLog().debug("Known tags: " + tags);
 
@@ -219,26 +279,219 @@ public class ReleaseMojo extends AbstractGitOpsMojo {
             throw new MojoFailureException("Unknown SCM URL: " + scmUrl, e);
         } catch (ScmException | IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            if (remote != null) {
+                remote.close();
+            }
+            reportTimings();
+            closeGitBackend();
         }
     }
 
-    private String tagNameFromVersion(String version) throws MojoExecutionException {
-        Interpolator interpolator = new StringSearchInterpolator("@{", "}");
-        List<String> possiblePrefixes = Arrays.asList("project", "pom");
-        Properties values = new Properties();
-        values.setProperty("artifactId", project.getArtifactId());
-        values.setProperty("groupId", project.getGroupId());
-        values.setProperty("version", version);
-        interpolator.addValueSource(new PrefixedPropertiesValueSource(possiblePrefixes, values, true));
-        RecursionInterceptor recursionInterceptor = new PrefixAwareRecursionInterceptor(possiblePrefixes);
-        try {
-            return interpolator.interpolate(tagNameFormat, recursionInterceptor);
-        } catch (InterpolationException e) {
-            throw new MojoExecutionException(
-                    "Could not interpolate specified tag name format: " + tagNameFormat, e);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getRemoteReadTimeout() {
+        return remoteTagReadTimeout;
+    }
+
+    /**
+     * Finds the tags of the remote repository that decide the version. The listing of the tags does not depend on the
+     * version, so it is started as soon as the query is created. The tags are kept in the persistent cache so that
+     * they can be reused for {@code remoteTagCacheTtl} and, with {@code remoteTagFallback}, stand in for the remote
+     * repository when it cannot be queried.
+     */
+    private final class RemoteTagQuery {
+        private final String url;
+        private final TimestampCache cache;
+        private final TimestampCache.RemoteTags cached;
+        private final long deadline;
+        private final ExecutorService executor;
+        private Future<Set<String>> listing;
+
+        RemoteTagQuery(String url) throws ScmException {
+            this.url = url;
+            this.cache = getTimestampCache(getGitSnapshot().getKey());
+            this.cached = cache == null ? null : cache.getRemoteTags(url);
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remoteTagTimeout);
+            this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    // git cannot be interrupted, so do not hold up the exit of the JVM on a slow remote
+                    Thread thread = new Thread(r, "git-timestamp remote tags");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long listed = cached == null ? 0L : cached.getListed();
+            if (!session.isOffline()
+                    && (listed == 0L || System.currentTimeMillis() - listed >= remoteTagCacheTtl * 1000L)) {
+                listing = list();
+            }
+        }
+
+        private Future<Set<String>> list() {
+            return executor.submit(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws ScmException {
+                    Set<String> tags = new HashSet<>();
+                    long now = System.currentTimeMillis();
+                    getGitBackend().listRemoteTags(url, tags);
+                    return update(tags, now);
+                }
+            });
+        }
+
+        /**
+         * Finds the tags that decide the version.
+         *
+         * @param template    the tag name template.
+         * @param baseVersion the base version of the candidates.
+         * @return the tags.
+         * @throws ScmException if the remote repository could not be queried and its tags cannot be fallen back on.
+         */
+        Set<String> find(final TagNameTemplate template, final String baseVersion) throws ScmException {
+            if (session.isOffline()) {
+                if (!remoteTagFallback) {
+                    throw new ScmException("Maven is offline so the tags of " + url + " cannot be listed, "
+                            + "use localTags or remoteTagFallback");
+                }
+                getLog().warn("Offline, the chosen tag name may already exist in " + url);
+                return findLocalTags(cached, template, baseVersion);
+            }
+            Future<Set<String>> remote = listing;
+            if (remote == null) {
+                getLog().debug("Using the tags of " + url + " as listed at " + new Date(cached.getListed()));
+                return new HashSet<>(cached.getTags());
+            }
+            try {
+                if (remoteTagTimeout <= 0) {
+                    return remote.get();
+                }
+                return remote.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                remote.cancel(true);
+                if (!remoteTagFallback) {
+                    throw new ScmException(url + " did not answer within " + remoteTagTimeout + "ms, "
+                            + "increase remoteTagTimeout or use localTags or remoteTagFallback");
+                }
+                if (cached == null) {
+                    throw new ScmException(url + " did not answer within " + remoteTagTimeout + "ms and its tags "
+                            + "have not been seen before, increase remoteTagTimeout or use localTags");
+                }
+                getLog().warn(url + " did not answer within " + remoteTagTimeout
+                        + "ms, the chosen tag name may already exist there");
+                return findLocalTags(cached, template, baseVersion);
+            } catch (ExecutionException e) {
+                if (!remoteTagFallback || cached == null) {
+                    if (e.getCause() instanceof ScmException) {
+                        throw (ScmException) e.getCause();
+                    }
+                    throw new ScmException("Could not query " + url, e.getCause());
+                }
+                getLog().warn("Could not query " + url + ", the chosen tag name may already exist there: "
+                        + e.getCause().getMessage());
+                return findLocalTags(cached, template, baseVersion);
+            } catch (InterruptedException e) {
+                remote.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new ScmException("Interrupted while querying " + url, e);
+            }
+        }
+
+        /**
+         * Updates the cache with the tags of the remote repository.
+         */
+        private Set<String> update(Set<String> tags, long listed) {
+            boolean changed = cached == null || !tags.equals(cached.getTags())
+                    || remoteTagCacheTtl > 0 && listed != cached.getListed();
+            if (cache != null && changed) {
+                cache.putRemoteTags(url, tags, listed);
+            }
+            return tags;
+        }
+
+        /**
+         * Stops any query that is still running.
+         */
+        void close() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the local tags that decide the version, starting from the tags of the remote repository as last seen.
+     */
+    private Set<String> findLocalTags(TimestampCache.RemoteTags cached, TagNameTemplate template, String baseVersion)
+            throws ScmException {
+        Set<String> tags = new HashSet<>();
+        if (cached != null) {
+            tags.addAll(cached.getTags());
+        }
+        queryCandidates(template, baseVersion, tags, new TagLookup() {
+            @Override
+            public void lookup(Collection<String> names, Set<String> taken) throws ScmException {
+                getGitSnapshot().listTags(names, taken, getGitBackend());
+            }
+        });
+        return tags;
+    }
+
+    /**
+     * Looks up the candidate tag names that are not known to be taken, in batches that double in size each time that
+     * every candidate looked up is taken, until the first free candidate has been looked up.
+     *
+     * @param template    the tag name template.
+     * @param baseVersion the base version of the candidates.
+     * @param tags        the tags known to be taken, to which the taken candidates are added.
+     * @param lookup      how to look up the candidates.
+     * @throws ScmException if the candidates could not be looked up.
+     */
+    private void queryCandidates(TagNameTemplate template, String baseVersion, Set<String> tags, TagLookup lookup)
+            throws ScmException {
+        TagIndex index = new TagIndex();
+        indexTags(template, baseVersion, tags, index);
+        String version = index.nextFree(baseVersion, alwaysIncludeRepeatCount);
+        Iterator<String> candidates = new CandidateVersionsIterator(baseVersion, alwaysIncludeRepeatCount);
+        String candidate = candidates.next();
+        while (!candidate.equals(version)) {
+            // known to be taken
+            candidate = candidates.next();
+        }
+        Set<String> queried = new HashSet<>();
+        int batchSize = INITIAL_CANDIDATE_BATCH;
+        while (!queried.contains(template.render(version))) {
+            List<String> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize) {
+                batch.add(template.render(candidate));
+                candidate = candidates.next();
+            }
+            Set<String> taken = new HashSet<>();
+            lookup.lookup(batch, taken);
+            indexTags(template, baseVersion, taken, index);
+            tags.addAll(taken);
+            queried.addAll(batch);
+            batchSize *= 2;
+            version = index.nextFree(baseVersion, alwaysIncludeRepeatCount);
         }
     }
 
+    private static void indexTags(TagNameTemplate template, String baseVersion, Set<String> tags, TagIndex index) {
+        for (String tag : tags) {
+            String version = template.parse(tag);
+            if (version != null && version.startsWith(baseVersion)) {
+                index.add(version);
+            }
+        }
+    }
+
+    /**
+     * Finds out which of a batch of tag names exist.
+     */
+    private interface TagLookup {
+        void lookup(Collection<String> names, Set<String> taken) throws ScmException;
+    }
 
     private static class CandidateVersionsIterator implements Iterator<String> {
 
@@ -270,42 +523,4 @@ public class ReleaseMojo extends AbstractGitOpsMojo {
             throw new UnsupportedOperationException();
         }
     }
-
-    private static class TagListConsumer implements StreamConsumer {
-        private final Set<String> tags;
-
-        public TagListConsumer(Set<String> tags) {
-            this.tags = tags;
-        }
-
-        @Override
-        public void consumeLine(String line) {
-            line.trim();
-            if (!line.isEmpty()) {
-                tags.add(line);
-            }
-        }
-    }
-
-    private static class LsRemoteTagsConsumer implements StreamConsumer {
-        private final Set<String> tags;
-
-        public LsRemoteTagsConsumer(Set<String> tags) {
-            this.tags = tags;
-        }
-
-        @Override
-        public void consumeLine(String line) {
-            line.trim();
-            if (!line.isEmpty()) {
-                int index = line.indexOf(REFS_TAGS);
-                if (index != -1 && line.matches("^[0-9a-fA-F]{40}\\s+refs/tags/.*$")) {
-                    if (line.endsWith("{}")) {
-                        line = line.substring(0, line.length() - 2);
-                    }
-                    tags.add(line.substring(index + REFS_TAGS.length()));
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Keeps the snapshots of a git repository between the builds of a long lived Maven process, such as the Maven daemon,
+ * where the plugin's classes outlive the session. The commit counts of a snapshot only depend on its key, and its
+ * module histories on its key and the module directories that they are of, so they are always kept. The working tree
+ * states are kept for as long as a {@link WatchService} on the tracked directories of the working tree reports no
+ * change to a tracked path, and the local tags for as long as it reports no change to {@code packed-refs} or
+ * {@code refs/tags}. Changes to {@code HEAD} and the index change the key of the
+ * snapshot, so they need no watching.
+ * <p>
+ * Events for paths that are not tracked, such as the {@code target} directories that the build itself writes, do not
+ * invalidate anything. Where the platform's {@link WatchService} polls for changes, a change could be reported after
+ * the next build has started, so the working tree states are not kept at all.
+ */
+final class RepositoryWatcher {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * The maximum number of working trees to watch.
+     */
+    private static final int MAX_WATCHERS = 4;
+    /**
+     * The maximum number of snapshots to keep for each working tree.
+     */
+    private static final int MAX_SNAPSHOTS = 8;
+    /**
+     * The watchers by the top level of their working tree, least recently used first.
+     */
+    private static final Map<File, RepositoryWatcher> WATCHERS =
+            new LinkedHashMap<File, RepositoryWatcher>(MAX_WATCHERS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, RepositoryWatcher> eldest) {
+                    if (size() > MAX_WATCHERS) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private final File topLevel;
+    private final File gitDir;
+    private final Map<GitSnapshot.Key, GitSnapshot> snapshots =
+            new LinkedHashMap<GitSnapshot.Key, GitSnapshot>(MAX_SNAPSHOTS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<GitSnapshot.Key, GitSnapshot> eldest) {
+                    return size() > MAX_SNAPSHOTS;
+                }
+            };
+    /**
+     * The watched directories of the working tree, relative to the top level and ending in {@code /}.
+     */
+    private final Map<WatchKey, String> directories = new HashMap<>();
+    /**
+     * The watched directories below {@code refs/tags}.
+     */
+    private final Map<WatchKey, Path> tagDirectories = new HashMap<>();
+    /**
+     * The directories of the working tree that contain tracked files, relative to the top level and ending in
+     * {@code /}.
+     */
+    private final Set<String> tracked = new HashSet<>();
+    /**
+     * Paths that were reported as changed but are not tracked, for the current state of the index.
+     */
+    private final Set<String> untracked = new HashSet<>();
+    private WatchService service;
+    private WatchKey commonDirKey;
+    private long indexLength = -1L;
+    private long indexLastModified;
+
+    private RepositoryWatcher(GitSnapshot.Key key, Log log) {
+        this.topLevel = key.getTopLevel();
+        this.gitDir = key.getGitDir();
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            if (service.getClass().getName().contains("Polling")) {
+                log.debug("File system changes are polled for, the state of " + topLevel
+                        + " will not be kept between builds");
+                service.close();
+                service = null;
+                return;
+            }
+            Path commonDir = GitFiles.commonDir(gitDir).toPath();
+            commonDirKey = commonDir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchTags(commonDir.resolve("refs").resolve("tags"));
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Could not watch " + topLevel + ", its state will not be kept between builds", e);
+            close();
+        }
+    }
+
+    /**
+     * Returns the snapshot for the supplied key, reusing the snapshot from a previous build if there is one. Anything
+     * that the snapshot holds which may have changed since it was last used is discarded first.
+     *
+     * @param key the key.
+     * @param log the log.
+     * @return the snapshot.
+     */
+    static GitSnapshot snapshot(GitSnapshot.Key key, Log log) {
+        RepositoryWatcher watcher;
+        synchronized (WATCHERS) {
+            watcher = WATCHERS.get(key.getTopLevel());
+            if (watcher == null) {
+                watcher = new RepositoryWatcher(key, log);
+                WATCHERS.put(key.getTopLevel(), watcher);
+            }
+        }
+        return watcher.get(key, log);
+    }
+
+    /**
+     * Registers a snapshot under an additional key, see {@link GitSnapshot#alias}.
+     *
+     * @param key      the additional key.
+     * @param snapshot the snapshot.
+     */
+    static void alias(GitSnapshot.Key key, GitSnapshot snapshot) {
+        RepositoryWatcher watcher;
+        synchronized (WATCHERS) {
+            watcher = WATCHERS.get(key.getTopLevel());
+        }
+        if (watcher != null) {
+            watcher.put(key, snapshot);
+        }
+    }
+
+    private synchronized void put(GitSnapshot.Key key, GitSnapshot snapshot) {
+        if (!snapshots.containsKey(key)) {
+            snapshots.put(key, snapshot);
+        }
+    }
+
+    private synchronized GitSnapshot get(GitSnapshot.Key key, Log log) {
+        boolean workingTreeChanged = true;
+        boolean tagsChanged = true;
+        if (service != null) {
+            try {
+                watchWorkingTree();
+                tagsChanged = false;
+                workingTreeChanged = false;
+                Set<String> changed = new HashSet<>();
+                WatchKey watchKey;
+                while ((watchKey = service.poll()) != null) {
+                    String directory = directories.get(watchKey);
+                    Path tagDirectory = tagDirectories.get(watchKey);
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            workingTreeChanged = true;
+                            tagsChanged = true;
+                        } else if (directory != null) {
+                            changed.add(directory + event.context());
+                        } else if (tagDirectory != null) {
+                            tagsChanged = true;
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                // tag names may contain /
+                                watchTags(tagDirectory.resolve((Path) event.context()));
+                            }
+                        } else if (watchKey == commonDirKey && "packed-refs".equals(event.context().toString())) {
+                            tagsChanged = true;
+                        }
+                    }
+                    if (!watchKey.reset()) {
+                        // the directory was removed
+                        workingTreeChanged |= directories.remove(watchKey) != null;
+                        tagDirectories.remove(watchKey);
+                    }
+                }
+                if (!workingTreeChanged && !changed.isEmpty()) {
+                    workingTreeChanged = isTracked(changed);
+                }
+                if (workingTreeChanged) {
+                    // directories that were removed and created again
+                    watchWorkingTree();
+                }
+            } catch (IOException e) {
+                log.debug("Could not watch " + topLevel + ", its state will not be kept between builds", e);
+                close();
+            }
+        }
+        for (GitSnapshot snapshot : snapshots.values()) {
+            if (workingTreeChanged) {
+                snapshot.invalidateWorkingTrees();
+            }
+            if (tagsChanged) {
+                snapshot.invalidateTags();
+            }
+        }
+        GitSnapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+            snapshot = new GitSnapshot(key);
+            snapshots.put(key, snapshot);
+        } else {
+            log.debug("Reusing the state of " + key + " from a previous build");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Watches every directory that contains tracked files, reading the index again if it has changed.
+     */
+    private void watchWorkingTree() throws IOException {
+        File index = new File(gitDir, "index");
+        if (index.length() != indexLength || index.lastModified() != indexLastModified) {
+            indexLength = index.length();
+            indexLastModified = index.lastModified();
+            untracked.clear();
+            tracked.clear();
+            tracked.add("");
+            GitIndexReader.list(gitDir, new byte[0], new PathConsumer() {
+                private byte[] previous = new byte[0];
+                private int previousLength;
+
+                @Override
+                public void consume(byte[] buffer, int offset, int length) {
+                    int slash = length - 1;
+                    while (slash >= 0 && buffer[offset + slash] != '/') {
+                        slash--;
+                    }
+                    if (slash < 0 || slash + 1 == previousLength
+                            && regionMatches(buffer, offset, previous, previousLength)) {
+                        return;
+                    }
+                    previousLength = slash + 1;
+                    if (previous.length < previousLength) {
+                        previous = new byte[Math.max(previousLength, previous.length * 2)];
+                    }
+                    System.arraycopy(buffer, offset, previous, 0, previousLength);
+                    String directory = new String(buffer, offset, previousLength, UTF_8);
+                    while (tracked.add(directory)) {
+                        int parent = directory.lastIndexOf('/', directory.length() - 2);
+                        directory = directory.substring(0, parent + 1);
+                    }
+                }
+            });
+        }
+        Set<String> watched = new HashSet<>(directories.values());
+        for (String directory : tracked) {
+            Path path = topLevel.toPath().resolve(directory);
+            if (!watched.contains(directory) && Files.isDirectory(path)) {
+                directories.put(path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+            }
+        }
+    }
+
+    private void watchTags(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        tagDirectories.put(directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+                watchTags(child);
+            }
+        }
+    }
+
+    /**
+     * Checks whether any of the changed paths is tracked, in a single pass over the index for the paths not already
+     * known. Only paths with the same length as one of the changed paths need to be decoded for the check.
+     */
+    private boolean isTracked(Set<String> changed) throws IOException {
+        final Set<String> unknown = new HashSet<>();
+        final BitSet lengths = new BitSet();
+        for (String path : changed) {
+            if (tracked.contains(path + "/")) {
+                return true;
+            }
+            if (!untracked.contains(path)) {
+                unknown.add(path);
+                lengths.set(path.getBytes(UTF_8).length);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return false;
+        }
+        final boolean[] found = new boolean[1];
+        GitIndexReader.list(gitDir, new byte[0], new PathConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                if (!found[0] && lengths.get(length) && unknown.contains(new String(buffer, offset, length, UTF_8))) {
+                    found[0] = true;
+                }
+            }
+        });
+        if (!found[0]) {
+            untracked.addAll(unknown);
+        }
+        return found[0];
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, byte[] other, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void close() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            service = null;
+        }
+        directories.clear();
+        tagDirectories.clear();
+        for (Iterator<GitSnapshot> i = snapshots.values().iterator(); i.hasNext(); ) {
+            i.next().invalidateWorkingTrees();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The versions that have already been released, indexed by base version so that the next free repeat of a base
+ * version can be found with one ordered walk of the repeats that are taken. A version {@code 1.57.2} is recorded both
+ * as repeat {@code 2} of {@code 1.57} and as the bare version {@code 1.57.2}.
+ */
+final class TagIndex {
+    /**
+     * Marks the bare base version, i.e. the first attempt without an explicit {@code .0}.
+     */
+    private static final long BARE = -1L;
+
+    private final Map<String, NavigableSet<Long>> repeats = new TreeMap<>();
+
+    /**
+     * Records a version that has been released.
+     *
+     * @param version the version.
+     * @return {@code this}.
+     */
+    TagIndex add(String version) {
+        add(version, BARE);
+        int dot = version.lastIndexOf('.');
+        if (dot > 0 && dot < version.length() - 1 && isRepeatCount(version, dot + 1)) {
+            try {
+                add(version.substring(0, dot), Long.parseLong(version.substring(dot + 1)));
+            } catch (NumberFormatException e) {
+                // too large to ever be a candidate
+            }
+        }
+        return this;
+    }
+
+    private void add(String baseVersion, long repeat) {
+        NavigableSet<Long> taken = repeats.get(baseVersion);
+        if (taken == null) {
+            taken = new TreeSet<>();
+            repeats.put(baseVersion, taken);
+        }
+        taken.add(repeat);
+    }
+
+    /**
+     * Checks for the digits of a repeat count as it would be rendered, i.e. without leading zeros.
+     */
+    private static boolean isRepeatCount(String version, int start) {
+        if (version.charAt(start) == '0' && start < version.length() - 1) {
+            return false;
+        }
+        for (int i = start; i < version.length(); i++) {
+            if (version.charAt(i) < '0' || version.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first version in the sequence of candidates for a base version that has not been released. The
+     * candidates are {@code 1.57}, {@code 1.57.1}, {@code 1.57.2}, ... or, when the repeat count is always included,
+     * {@code 1.57.0}, {@code 1.57.1}, {@code 1.57.2}, ...
+     *
+     * @param baseVersion              the base version.
+     * @param alwaysIncludeRepeatCount {@code true} if the first candidate includes the {@code .0}.
+     * @return the first version that has not been released.
+     */
+    String nextFree(String baseVersion, boolean alwaysIncludeRepeatCount) {
+        NavigableSet<Long> taken = repeats.get(baseVersion);
+        long first = alwaysIncludeRepeatCount ? 0L : BARE;
+        if (taken == null || !taken.contains(first)) {
+            return alwaysIncludeRepeatCount ? baseVersion + ".0" : baseVersion;
+        }
+        long next = 1L;
+        for (Long repeat : taken.tailSet(next, true)) {
+            if (repeat != next) {
+                break;
+            }
+            next++;
+        }
+        return baseVersion + "." + next;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.interpolation.InterpolationException;
+import org.codehaus.plexus.interpolation.Interpolator;
+import org.codehaus.plexus.interpolation.PrefixAwareRecursionInterceptor;
+import org.codehaus.plexus.interpolation.PrefixedPropertiesValueSource;
+import org.codehaus.plexus.interpolation.RecursionInterceptor;
+import org.codehaus.plexus.interpolation.StringSearchInterpolator;
+
+/**
+ * A tag name format, as used by {@code release:prepare}, compiled for a project. The format is interpolated once with
+ * a placeholder for the version, so that tag names can then be rendered by concatenation and parsed back into the
+ * version that they were rendered from.
+ */
+final class TagNameTemplate {
+    /**
+     * Stands in for the version during the interpolation, cannot appear in a version or a tag name.
+     */
+    private static final String VERSION_PLACEHOLDER = "\u0000version\u0000";
+
+    /**
+     * The text between the occurrences of the version.
+     */
+    private final String[] literals;
+    private final int literalsLength;
+
+    private TagNameTemplate(String[] literals) {
+        this.literals = literals;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalsLength = length;
+    }
+
+    /**
+     * Compiles a tag name format.
+     *
+     * @param format     the format, e.g. {@code @{project.artifactId}-@{project.version}}.
+     * @param groupId    the group id of the project.
+     * @param artifactId the artifact id of the project.
+     * @return the template.
+     * @throws MojoExecutionException if the format could not be interpolated.
+     */
+    static TagNameTemplate compile(String format, String groupId, String artifactId) throws MojoExecutionException {
+        Interpolator interpolator = new StringSearchInterpolator("@{", "}");
+        List<String> possiblePrefixes = Arrays.asList("project", "pom");
+        Properties values = new Properties();
+        values.setProperty("artifactId", artifactId);
+        values.setProperty("groupId", groupId);
+        values.setProperty("version", VERSION_PLACEHOLDER);
+        interpolator.addValueSource(new PrefixedPropertiesValueSource(possiblePrefixes, values, true));
+        RecursionInterceptor recursionInterceptor = new PrefixAwareRecursionInterceptor(possiblePrefixes);
+        try {
+            String interpolated = interpolator.interpolate(format, recursionInterceptor);
+            List<String> literals = new ArrayList<>();
+            int start = 0;
+            for (int index; (index = interpolated.indexOf(VERSION_PLACEHOLDER, start)) != -1; ) {
+                literals.add(interpolated.substring(start, index));
+                start = index + VERSION_PLACEHOLDER.length();
+            }
+            literals.add(interpolated.substring(start));
+            return new TagNameTemplate(literals.toArray(new String[literals.size()]));
+        } catch (InterpolationException e) {
+            throw new MojoExecutionException("Could not interpolate specified tag name format: " + format, e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the format does not include the version, so every version has the same tag name.
+     *
+     * @return {@code true} if the format does not include the version.
+     */
+    boolean isConstant() {
+        return literals.length < 2;
+    }
+
+    /**
+     * Renders the tag name of a version.
+     *
+     * @param version the version.
+     * @return the tag name.
+     */
+    String render(String version) {
+        StringBuilder result = new StringBuilder(literalsLength + version.length() * (literals.length - 1));
+        result.append(literals[0]);
+        for (int i = 1; i < literals.length; i++) {
+            result.append(version).append(literals[i]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Parses the version that a tag name was rendered from.
+     *
+     * @param tagName the tag name.
+     * @return the version or {@code null} if the tag name was not rendered by this template.
+     */
+    String parse(String tagName) {
+        int slots = literals.length - 1;
+        if (slots < 1 || tagName.length() <= literalsLength || (tagName.length() - literalsLength) % slots != 0
+                || !tagName.startsWith(literals[0])) {
+            return null;
+        }
+        int length = (tagName.length() - literalsLength) / slots;
+        String version = tagName.substring(literals[0].length(), literals[0].length() + length);
+        if (slots == 1) {
+            return tagName.endsWith(literals[1]) ? version : null;
+        }
+        return tagName.equals(render(version)) ? version : null;
+    }
+}
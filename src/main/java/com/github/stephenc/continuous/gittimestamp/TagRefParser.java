@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+/**
+ * Parses records of the form {@code <object id> refs/tags/<name>}, as output by {@code git ls-remote} and
+ * {@code git for-each-ref}, and passes on the name of each tag straight from the record. The object id may be a SHA-1
+ * or SHA-256 id and may be separated from the ref by a tab or spaces. Peeled entries, i.e.
+ * {@code refs/tags/<name>^{}}, are reported under the name of the tag and, as they follow the tag itself, only
+ * reported once. Records that are not tags are ignored.
+ */
+final class TagRefParser implements PathConsumer {
+    private static final byte[] REFS_TAGS = {'r', 'e', 'f', 's', '/', 't', 'a', 'g', 's', '/'};
+    private static final byte[] PEELED = {'^', '{', '}'};
+
+    private final PathConsumer names;
+    private byte[] previous = new byte[256];
+    private int previousLength = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param names the consumer of the tag names.
+     */
+    TagRefParser(PathConsumer names) {
+        this.names = names;
+    }
+
+    @Override
+    public void consume(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && isWhitespace(buffer[end - 1])) {
+            end--;
+        }
+        int idEnd = offset;
+        while (idEnd < end && isHexDigit(buffer[idEnd])) {
+            idEnd++;
+        }
+        if (idEnd - offset != 40 && idEnd - offset != 64) {
+            return;
+        }
+        int start = idEnd;
+        while (start < end && isWhitespace(buffer[start])) {
+            start++;
+        }
+        if (start == idEnd || !regionMatches(buffer, start, end, REFS_TAGS)) {
+            return;
+        }
+        start += REFS_TAGS.length;
+        if (end - start >= PEELED.length && regionMatches(buffer, end - PEELED.length, end, PEELED)) {
+            end -= PEELED.length;
+        }
+        int nameLength = end - start;
+        if (nameLength == 0) {
+            return;
+        }
+        if (nameLength == previousLength && regionMatches(buffer, start, end, previous, previousLength)) {
+            return;
+        }
+        if (previous.length < nameLength) {
+            previous = new byte[Math.max(nameLength, previous.length * 2)];
+        }
+        System.arraycopy(buffer, start, previous, 0, nameLength);
+        previousLength = nameLength;
+        names.consume(buffer, start, nameLength);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean isHexDigit(byte b) {
+        return b >= '0' && b <= '9' || b >= 'a' && b <= 'f' || b >= 'A' && b <= 'F';
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, int end, byte[] other) {
+        return regionMatches(buffer, offset, end, other, other.length);
+    }
+
+    private static boolean regionMatches(byte[] buffer, int offset, int end, byte[] other, int length) {
+        if (end - offset < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A cache of working tree states, commit counts, module histories and remote tags that persists between builds. The
+ * cache lives in the common directory of the repository so that linked worktrees share it.
+ * <p>
+ * Each entry is a separate properties file named by a digest of its key. Entries are written to a temporary file and
+ * then moved into place, so a concurrent build will either see the complete old entry, the complete new entry or no
+ * entry. Any entry that cannot be read is treated as a miss and removed. Only the most recently used entries are
+ * retained.
+ */
+final class TimestampCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * The name of the directory within the git common directory.
+     */
+    private static final String DIRECTORY = "git-timestamp-maven-plugin";
+    /**
+     * Bump this if the format of the entries changes.
+     */
+    private static final String FORMAT = "2";
+    private static final String ENTRY_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * The maximum number of entries to retain.
+     */
+    private static final int MAX_ENTRIES = 256;
+    /**
+     * Temporary files older than this were left behind by a build that died.
+     */
+    private static final long STALE_TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final File directory;
+    private final boolean shallow;
+    private final Log log;
+
+    private TimestampCache(File directory, boolean shallow, Log log) {
+        this.directory = directory;
+        this.shallow = shallow;
+        this.log = log;
+    }
+
+    /**
+     * Returns the cache for the repository of the supplied snapshot key.
+     *
+     * @param key the key.
+     * @param log the log to report cache problems to.
+     * @return the cache.
+     * @throws IOException if the common directory of the repository could not be determined.
+     */
+    static TimestampCache forKey(GitSnapshot.Key key, Log log) throws IOException {
+        File commonDir = GitFiles.commonDir(key.getGitDir());
+        return new TimestampCache(new File(commonDir, DIRECTORY), new File(commonDir, "shallow").isFile(), log);
+    }
+
+    /**
+     * Returns the cached state of a working tree.
+     *
+     * @param key     the key of the entry, which must identify the commit, the scan and anything else the state
+     *                depends on.
+     * @param changes the digest of the current changed files and their last modified timestamps, which must match
+     *                that the entry was stored with.
+     * @return the state or {@code null} if there is no matching entry.
+     * @see ChangedFiles#getDigest()
+     */
+    WorkingTreeState getWorkingTree(String key, String changes) {
+        Properties entry = read("tree:" + key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            if (!changes.equals(entry.getProperty("changes"))) {
+                return null;
+            }
+            WorkingTreeState.Builder builder = new WorkingTreeState.Builder();
+            builder.baseline(Long.parseLong(entry.getProperty("baseline")));
+            int directoryCount = 0;
+            for (String name : entry.stringPropertyNames()) {
+                if (name.startsWith("d.")) {
+                    String value = entry.getProperty(name);
+                    int comma = value.indexOf(',');
+                    builder.directory(name.substring(2), Long.parseLong(value.substring(0, comma)),
+                            Long.parseLong(value.substring(comma + 1)));
+                    directoryCount++;
+                }
+            }
+            if (directoryCount != Integer.parseInt(entry.getProperty("directories"))) {
+                throw new NumberFormatException("Expected " + entry.getProperty("directories") + " directories");
+            }
+            return builder.build();
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            corrupt("tree:" + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the state of a working tree.
+     *
+     * @param key     the key of the entry.
+     * @param changes the digest of the changed files and their last modified timestamps at the time of the scan.
+     * @param state   the state.
+     */
+    void putWorkingTree(String key, String changes, WorkingTreeState state) {
+        final Properties entry = new Properties();
+        entry.setProperty("changes", changes);
+        entry.setProperty("baseline", Long.toString(state.getBaseline()));
+        final int[] directoryCount = new int[1];
+        state.accept(new WorkingTreeState.Visitor() {
+            @Override
+            public void visit(String directory, long lastModified, long changedFiles) {
+                entry.setProperty("d." + directory, lastModified + "," + changedFiles);
+                directoryCount[0]++;
+            }
+        });
+        entry.setProperty("directories", Integer.toString(directoryCount[0]));
+        write("tree:" + key, entry);
+    }
+
+    /**
+     * Returns a cached commit count.
+     *
+     * @param key the key of the entry, which must identify the commit and the reference commit.
+     * @return the count or {@code null} if there is no matching entry.
+     */
+    Long getCommitCount(String key) {
+        if (shallow) {
+            // the count will change when the history is deepened
+            return null;
+        }
+        Properties entry = read("count:" + key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(entry.getProperty("count"));
+        } catch (NumberFormatException e) {
+            corrupt("count:" + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a commit count.
+     *
+     * @param key   the key of the entry.
+     * @param count the count.
+     */
+    void putCommitCount(String key, long count) {
+        if (shallow) {
+            return;
+        }
+        Properties entry = new Properties();
+        entry.setProperty("count", Long.toString(count));
+        write("count:" + key, entry);
+    }
+
+    /**
+     * Restores the cached history of the module directories.
+     *
+     * @param key     the key of the entry, which must identify the commit and the reference commit.
+     * @param history the history to restore, which is only modified if the entry has every one of its directories.
+     * @return {@code true} if the history was restored.
+     */
+    boolean getModuleHistory(String key, ModuleHistory history) {
+        if (shallow) {
+            // the counts will change when the history is deepened
+            return false;
+        }
+        Properties entry = read("modules:" + key);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            for (String prefix : history.getPrefixes()) {
+                if (entry.getProperty("m." + prefix) == null) {
+                    // a different selection of modules
+                    return false;
+                }
+            }
+            for (String prefix : history.getPrefixes()) {
+                String value = entry.getProperty("m." + prefix);
+                int comma = value.indexOf(',');
+                history.restore(prefix, Long.parseLong(value.substring(0, comma)),
+                        Long.parseLong(value.substring(comma + 1)));
+            }
+            return true;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            corrupt("modules:" + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the history of the module directories.
+     *
+     * @param key     the key of the entry.
+     * @param history the history.
+     */
+    void putModuleHistory(String key, ModuleHistory history) {
+        if (shallow) {
+            return;
+        }
+        final Properties entry = new Properties();
+        history.accept(new ModuleHistory.Visitor() {
+            @Override
+            public void visit(String prefix, long commits, long lastCommitTime) {
+                entry.setProperty("m." + prefix, commits + "," + lastCommitTime);
+            }
+        });
+        write("modules:" + key, entry);
+    }
+
+    /**
+     * Returns the cached tags of a remote repository.
+     *
+     * @param url the URL of the remote repository.
+     * @return the tags or {@code null} if there is no entry.
+     */
+    RemoteTags getRemoteTags(String url) {
+        String key = remoteKey(url);
+        Properties entry = read(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            Set<String> tags = new HashSet<>();
+            for (String name : entry.stringPropertyNames()) {
+                if (name.startsWith("t.")) {
+                    tags.add(name.substring(2));
+                }
+            }
+            if (tags.size() != Integer.parseInt(entry.getProperty("tags"))) {
+                throw new NumberFormatException("Expected " + entry.getProperty("tags") + " tags");
+            }
+            return new RemoteTags(tags, Long.parseLong(entry.getProperty("listed")));
+        } catch (NumberFormatException e) {
+            corrupt(key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the tags of a remote repository.
+     *
+     * @param url    the URL of the remote repository.
+     * @param tags   the tags that are known to exist.
+     * @param listed when every tag of the remote repository was last listed or {@code 0} if it never was.
+     */
+    void putRemoteTags(String url, Set<String> tags, long listed) {
+        Properties entry = new Properties();
+        for (String tag : tags) {
+            entry.setProperty("t." + tag, "");
+        }
+        entry.setProperty("tags", Integer.toString(tags.size()));
+        entry.setProperty("listed", Long.toString(listed));
+        write(remoteKey(url), entry);
+    }
+
+    /**
+     * Returns the key of the entry for a remote repository. The key is stored in the entry, so any user name and
+     * password in the URL, such as those that the SCM provider adds from {@code settings.xml}, are left out.
+     */
+    private static String remoteKey(String url) {
+        return "remote:" + url.replaceFirst("^([^:/@]+://)[^/]*@", "$1");
+    }
+
+    private File file(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + ENTRY_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, name.append(ENTRY_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is a required algorithm", e);
+        }
+    }
+
+    private Properties read(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties entry = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            entry.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            // the entry may have been evicted by a concurrent build
+            if (file.isFile()) {
+                corrupt(key, e);
+            }
+            return null;
+        }
+        if (!FORMAT.equals(entry.getProperty("format")) || !key.equals(entry.getProperty("key"))) {
+            return null;
+        }
+        // record the use for eviction, a concurrent build touching it as well does not matter
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    private void write(String key, Properties entry) {
+        entry.setProperty("format", FORMAT);
+        entry.setProperty("key", key);
+        File file = file(key);
+        File temp = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            temp = File.createTempFile("entry", TEMP_SUFFIX, directory);
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                entry.store(out, null);
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        } catch (IOException e) {
+            log.debug("Could not write timestamp cache entry " + file, e);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+        evict();
+    }
+
+    private void corrupt(String key, Exception e) {
+        File file = file(key);
+        log.debug("Discarding unreadable timestamp cache entry " + file, e);
+        // if a concurrent build has just replaced it then we only lose a valid entry
+        file.delete();
+    }
+
+    private void evict() {
+        final long stale = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+        File[] entries = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                if (file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < stale) {
+                    file.delete();
+                    return false;
+                }
+                return file.getName().endsWith(ENTRY_SUFFIX);
+            }
+        });
+        if (entries == null || entries.length <= MAX_ENTRIES) {
+            return;
+        }
+        final long[] lastModified = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            lastModified[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[b], lastModified[a]);
+            }
+        });
+        for (int i = MAX_ENTRIES; i < order.length; i++) {
+            // a concurrent build may have evicted it already
+            entries[order[i]].delete();
+        }
+    }
+
+    /**
+     * The tags of a remote repository as last seen. Tags that exist are listed completely from time to time and only
+     * looked up by name in between, so the tags may be incomplete, but as tags are not expected to be deleted every
+     * tag is expected to still exist.
+     */
+    static final class RemoteTags {
+        private final Set<String> tags;
+        private final long listed;
+
+        RemoteTags(Set<String> tags, long listed) {
+            this.tags = Collections.unmodifiableSet(tags);
+            this.listed = listed;
+        }
+
+        /**
+         * Returns the tags that are known to exist.
+         *
+         * @return the tags that are known to exist.
+         */
+        Set<String> getTags() {
+            return tags;
+        }
+
+        /**
+         * Returns when every tag was last listed.
+         *
+         * @return when every tag was last listed or {@code 0} if they never were.
+         */
+        long getListed() {
+            return listed;
+        }
+    }
+}
@@ -18,26 +18,30 @@ package com.github.stephenc.continuous.gittimestamp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
 import org.apache.maven.scm.ScmException;
-import org.apache.maven.scm.ScmFile;
-import org.apache.maven.scm.ScmFileSet;
-import org.apache.maven.scm.command.status.StatusScmResult;
 import org.apache.maven.scm.manager.NoSuchScmProviderException;
-import org.apache.maven.scm.provider.ScmProvider;
-import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
 import org.apache.maven.scm.repository.ScmRepository;
-import org.codehaus.plexus.util.cli.Commandline;
-import org.codehaus.plexus.util.cli.StreamConsumer;
 
 /**
  * Generates a timestamp version based on the number of commits in the current Git branch and the last modified
@@ -49,7 +53,19 @@ import org.codehaus.plexus.util.cli.StreamConsumer;
       requiresProject = true,
       threadSafe = true)
 public class TimestampMojo extends AbstractGitOpsMojo {
-    private static final SimpleDateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyyMMdd.HHmmss");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * One per thread, as executions for different modules may run concurrently.
+     */
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMdd.HHmmss");
+        }
+    };
+    private static final Pattern SUBMODULE_PATH = Pattern.compile(
+            "^\\s*path\\s*=\\s*(.+?)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+    );
     private static final Pattern SNAPSHOT_PATTERN = Pattern.compile(
             "^(.*-)?((?:SNAPSHOT)|(?:\\d{4}[0-1]\\d[0-3]\\d\\.[0-2]\\d[0-6]\\d[0-6]\\d-\\d+))$"
     );
@@ -137,6 +153,87 @@ public class TimestampMojo extends AbstractGitOpsMojo {
      */
     @Parameter(defaultValue = "-SNAPSHOT", property = "snapshotText")
     private String snapshotText;
+    /**
+     * Where to take the last modified timestamps of the tracked files from:
+     * <dl>
+     * <dt>{@code files}</dt>
+     * <dd>Every tracked file is checked on disk.</dd>
+     * <dt>{@code index}</dt>
+     * <dd>The timestamps recorded in the git index are used. Only the files that are modified, or whose index entry
+     * is racily clean, are checked on disk.</dd>
+     * <dt>{@code commit}</dt>
+     * <dd>The committer time of {@code HEAD} is used, raised by the last modified timestamp of any modified or added
+     * files. Only the modified files are checked on disk, and the timestamp of a clean checkout does not depend on
+     * when it was cloned.</dd>
+     * </dl>
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "files", property = "timestampSource")
+    private String timestampSource;
+    /**
+     * The number of threads to use when checking the last modified timestamps of the tracked files on disk. Values
+     * less than {@code 1} will use one thread per available processor. Higher values can help on network and overlay
+     * file systems where each check has significant latency.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "0", property = "scanThreads")
+    private int scanThreads;
+    /**
+     * Scopes the timestamp and the commit count to the directory of each module, so that a change only affects the
+     * versions of the modules whose directories contain it. The commit count is the number of commits, other than
+     * merges, that changed files within the directory, and the {@code commit} timestamp source uses the most recent of
+     * those commits rather than {@code HEAD}. The history is walked once for every module of the reactor, however many
+     * modules there are. The other timestamp sources are always scoped to the directory of the module. When
+     * {@code commitCount} is supplied, or the repository is a shallow clone, the history is not walked and a warning
+     * is logged: the commit count is then that of the current branch, as supplied or counted from the
+     * {@code commitCountRefs}.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "false", property = "moduleScope")
+    private boolean moduleScope;
+    /**
+     * Glob patterns of the tracked files to take the timestamp and the modified state from, relative to the top level
+     * of the git working tree, e.g. {@code src/**}. The syntax is that of the {@code glob} magic of git pathspecs:
+     * {@code *} does not match {@code /}, {@code **} matches across directories and a pattern that matches a directory
+     * matches every file below it. If empty, every tracked file is included. With {@link #moduleScope} the commit count
+     * also only counts the commits that changed an included file.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "timestampIncludes")
+    private List<String> includes;
+    /**
+     * Glob patterns of the tracked files to ignore, with the same syntax as {@link #includes}, e.g. {@code docs},
+     * {@code .github} or {@code **}{@code /*.md}. Excluded files are never checked on disk.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "timestampExcludes")
+    private List<String> excludes;
+    /**
+     * Set this property to {@code true} to also take the timestamp and the commit count from the git submodules that
+     * are checked out within the working tree, including nested submodules, in the same way as the
+     * {@link #repositories}.
+     *
+     * @since 1.48
+     */
+    @Parameter(defaultValue = "false", property = "timestampSubmodules")
+    private boolean submodules;
+    /**
+     * Other git working trees to also take the timestamp and the commit count from, e.g. sibling checkouts that are
+     * added as extra source roots. Every repository is scanned in parallel, each with its own commit count and working
+     * tree state that are shared within the session. The timestamp is the most recent of all the repositories, the
+     * commit counts are added up and the working tree is modified if any of the repositories is. The
+     * {@link #includes}, {@link #excludes}, {@link #referenceCommit} and {@link #moduleScope} only apply to the
+     * repository of the project, the other repositories always count in full.
+     *
+     * @since 1.48
+     */
+    @Parameter(property = "timestampRepositories")
+    private List<File> repositories;
 
     /**
      * {@inheritDoc}
@@ -146,28 +243,115 @@ public class TimestampMojo extends AbstractGitOpsMojo {
         try {
             // first check that we are using git
             ScmRepository repository = getScmRepository();
-            ScmProvider provider = getValidatedScmProvider(repository);
+            getValidatedScmProvider(repository);
+            final PathFilter filter;
+            try {
+                filter = PathFilter.compile(includes, excludes);
+            } catch (IllegalArgumentException e) {
+                throw new MojoFailureException(e.getMessage(), e);
+            }
+            // the modified state only affects the version when it includes the commit count
+            final boolean untracked = isUntrackedDirty() && versionIncludesCommitCount;
 
-            // now get the last modified timestamp
-            final long[] lastModified = new long[1];
-            lastModified[0] = project.getFile().lastModified();
-            Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(basedir, "ls-files");
-            GitCommandLineUtils.execute(cl, new StreamConsumer() {
-                @Override
-                public void consumeLine(String s) {
-                    lastModified[0] = Math.max(lastModified[0], new File(basedir, s).lastModified());
+            final GitSnapshot snapshot = getGitSnapshot();
+            final File root;
+            String prefix;
+            boolean inWorkingTree;
+            if (snapshot.getKey() == null || (prefix = snapshot.getKey().relativize(basedir)) == null) {
+                root = basedir;
+                prefix = "";
+                inWorkingTree = false;
+            } else {
+                root = snapshot.getKey().getTopLevel();
+                inWorkingTree = true;
+            }
+
+            // the history is independent of the working tree, so walk it while the working tree is scanned
+            Future<ModuleHistory> history = null;
+            Future<Long> count = null;
+            boolean shallow = inWorkingTree && !GitFiles.shallowCommits(snapshot.getKey().getGitDir()).isEmpty();
+            if (moduleScope && inWorkingTree && !shallow && commitCount == null) {
+                history = startInBackground(new Callable<ModuleHistory>() {
+                    @Override
+                    public ModuleHistory call() throws Exception {
+                        return getModuleHistory(snapshot, filter);
+                    }
+                });
+            } else {
+                if (moduleScope && commitCount != null) {
+                    getLog().warn("The commit count is supplied, the version is not scoped to the module");
+                } else if (moduleScope && shallow) {
+                    getLog().warn("The git repository is a shallow clone, the version is not scoped to the module");
+                } else if (moduleScope) {
+                    getLog().warn("Could not resolve the git working tree, the version is not scoped to the module");
                 }
-            }, logDebugConsumer(), new GitCommandLineLogger(this));
-            StatusScmResult status = provider.status(repository, new ScmFileSet(basedir));
-            for (ScmFile f: status.getChangedFiles()) {
-                lastModified[0] = Math.max(lastModified[0], new File(basedir, f.getPath()).lastModified());
+                count = startCurrentBranchCommitCount();
+            }
+
+            // now get the last modified timestamp, scanning the whole working tree once per session if we can
+            final String source;
+            if ("index".equalsIgnoreCase(timestampSource) && snapshot.getKey() == null) {
+                source = "files";
+            } else if ("files".equalsIgnoreCase(timestampSource) || "index".equalsIgnoreCase(timestampSource)
+                    || "commit".equalsIgnoreCase(timestampSource)) {
+                source = timestampSource.toLowerCase(Locale.ENGLISH);
+            } else {
+                throw new MojoFailureException(
+                        "Unknown timestampSource '" + timestampSource + "', expected one of: files, index, commit");
+            }
+            // the other repositories are independent of this one, so scan them all while this one is scanned
+            List<Future<long[]>> others = new ArrayList<>();
+            for (final File other : getOtherRepositories(snapshot)) {
+                others.add(startInParallel(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        return scanOtherRepository(other, source, untracked);
+                    }
+                }));
             }
 
-            // now count how many commits on the current branch
-            long count = getCurrentBranchCommitCount();
+            String id = source + ":" + root + (filter.isAll() ? "" : " " + filter);
+            WorkingTreeState workingTree = snapshot.getWorkingTree(id, new Callable<WorkingTreeState>() {
+                @Override
+                public WorkingTreeState call() throws Exception {
+                    return scan(getGitBackend(), source, root, snapshot.getKey(), filter);
+                }
+            });
+            if (snapshot.getKey() != null) {
+                // git status may have refreshed the index
+                GitSnapshot.alias(session, snapshot.getKey().refresh(), snapshot);
+            }
+            // now wait for the number of commits on the current branch
+            long commits;
+            long lastModified;
+            if (history != null) {
+                ModuleHistory moduleHistory = await(history);
+                commits = moduleHistory.getCommitCount(prefix);
+                lastModified = "commit".equals(source)
+                        ? Math.max(moduleHistory.getLastCommitTime(prefix), workingTree.getFileLastModified(prefix))
+                        : workingTree.getLastModified(prefix);
+            } else {
+                commits = await(count);
+                lastModified = workingTree.getLastModified(prefix);
+            }
+            if (!"commit".equals(source) || lastModified == 0L) {
+                // a changed pom is a changed file, otherwise its timestamp is just when it was checked out
+                lastModified = Math.max(project.getFile().lastModified(), lastModified);
+            }
+            // the status that the timestamp needs has already found the changed tracked files
+            boolean modified = workingTree.hasChangedFiles(prefix);
+            if (untracked && !modified) {
+                modified = getGitBackend().hasUntrackedFiles(root, prefix, filter);
+            }
+            for (Future<long[]> other : others) {
+                long[] state = await(other);
+                commits += state[0];
+                lastModified = Math.max(lastModified, state[1]);
+                modified |= state[2] != 0L;
+            }
 
             // ok, let's create the timestamp
-            String timestamp = TIMESTAMP_FORMAT.format(new Date(lastModified[0])) + "-" + count;
+            String timestamp = TIMESTAMP_FORMAT.get().format(new Date(lastModified)) + "-" + commits;
             String version = project.getVersion();
             Matcher matcher = SNAPSHOT_PATTERN.matcher(version);
             if (matcher.matches()) {
@@ -181,7 +365,7 @@ public class TimestampMojo extends AbstractGitOpsMojo {
                                 // insert a separator if none present
                                 bareVersion = bareVersion + ".";
                             }
-                            bareVersion = bareVersion + (count + (status.getChangedFiles().isEmpty() ? 0 : 1)) + '-';
+                            bareVersion = bareVersion + (commits + (modified ? 1 : 0)) + '-';
                         } else {
                             getLog().warn("Project version '" + version + "' normalized to '" + snapshotVersion
                                     + "' does not end with '" + snapshotText + "'");
@@ -207,6 +391,276 @@ public class TimestampMojo extends AbstractGitOpsMojo {
             throw new MojoFailureException("Unknown SCM URL: " + scmUrl, e);
         } catch (ScmException | IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            reportTimings();
+            closeGitBackend();
+        }
+    }
+
+    /**
+     * Returns the other repositories to take the timestamp and commit count from, without duplicates and in a stable
+     * order.
+     */
+    private List<File> getOtherRepositories(GitSnapshot snapshot) throws IOException {
+        Set<File> result = new LinkedHashSet<>();
+        if (submodules && snapshot.getKey() != null) {
+            addSubmodules(snapshot.getKey().getTopLevel(), result);
+        }
+        if (repositories != null) {
+            for (File other : repositories) {
+                result.add(other.getCanonicalFile());
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Adds the submodules of a working tree that are checked out, and their submodules.
+     */
+    private static void addSubmodules(File topLevel, Set<File> result) throws IOException {
+        File gitmodules = new File(topLevel, ".gitmodules");
+        if (!gitmodules.isFile()) {
+            return;
+        }
+        Matcher matcher = SUBMODULE_PATH.matcher(FileUtils.readFileToString(gitmodules, "UTF-8"));
+        while (matcher.find()) {
+            File submodule = new File(topLevel, matcher.group(1));
+            if (new File(submodule, ".git").exists() && result.add(submodule.getCanonicalFile())) {
+                addSubmodules(submodule, result);
+            }
+        }
+    }
+
+    /**
+     * Scans another repository, counting its commits while its working tree is scanned.
+     *
+     * @return the commit count, the most recent last modified timestamp and {@code 1} if there are changed files, or
+     * untracked files if {@code untracked} is {@code true}.
+     */
+    private long[] scanOtherRepository(File directory, final String source, boolean untracked)
+            throws ScmException, MojoExecutionException {
+        final GitBackend git = getGitBackend(directory);
+        final GitSnapshot other = getGitSnapshot(git, directory);
+        final GitSnapshot.Key key = other.getKey();
+        Future<Long> count = startInParallel(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return getCommitCount(git, other, null);
+            }
+        });
+        WorkingTreeState workingTree = other.getWorkingTree(source + ":" + key.getTopLevel(),
+                new Callable<WorkingTreeState>() {
+                    @Override
+                    public WorkingTreeState call() throws Exception {
+                        return scan(git, source, key.getTopLevel(), key, PathFilter.ALL);
+                    }
+                });
+        GitSnapshot.alias(session, key.refresh(), other);
+        long commits = await(count);
+        getLog().debug(directory + ": " + commits + " commits, last modified "
+                + TIMESTAMP_FORMAT.get().format(new Date(workingTree.getLastModified(""))));
+        boolean modified = workingTree.hasChangedFiles("")
+                || untracked && git.hasUntrackedFiles(key.getTopLevel(), "", PathFilter.ALL);
+        return new long[]{commits, workingTree.getLastModified(""), modified ? 1L : 0L};
+    }
+
+    /**
+     * Returns the history of the directory of every module of the reactor, walking the history once per session.
+     */
+    private ModuleHistory getModuleHistory(final GitSnapshot snapshot, final PathFilter filter)
+            throws ScmException, IOException, MojoExecutionException {
+        final String reference = StringUtils.trimToNull(referenceCommit);
+        final GitSnapshot.Key key = snapshot.getKey();
+        final Set<String> prefixes = new HashSet<>();
+        prefixes.add(key.relativize(basedir));
+        for (MavenProject module : session.getProjects()) {
+            String prefix = key.relativize(module.getBasedir());
+            if (prefix != null) {
+                prefixes.add(prefix);
+            }
+        }
+        String id = (reference == null ? "" : reference) + (filter.isAll() ? "" : " " + filter);
+        return snapshot.getModuleHistory(id, prefixes, new Callable<ModuleHistory>() {
+            @Override
+            public ModuleHistory call() throws Exception {
+                ModuleHistory history = new ModuleHistory(prefixes);
+                TimestampCache cache = isCacheable(reference) ? getTimestampCache(key) : null;
+                String cacheKey = (reference == null ? "" : reference) + ".." + key.getHead()
+                        + (filter.isAll() ? "" : " " + filter);
+                if (cache != null && cache.getModuleHistory(cacheKey, history)) {
+                    getLog().debug("Using cached module history for " + cacheKey);
+                    return history;
+                }
+                Timings.Timing timing = getTimings().start("module-history", reference == null ? "HEAD" : reference);
+                try {
+                    getGitBackend().walkChangedFiles(reference,
+                            filter.isAll() ? history : new FilteredChanges(history, filter));
+                } finally {
+                    timing.stop();
+                }
+                if (cache != null) {
+                    cache.putModuleHistory(cacheKey, history);
+                }
+                return history;
+            }
+        });
+    }
+
+    private WorkingTreeState scan(GitBackend git, String source, final File root, GitSnapshot.Key key,
+                                  PathFilter filter)
+            throws ScmException, IOException, MojoExecutionException {
+        // query the changes first as git will refresh the stat data in the index if it can
+        ChangedFiles changed = new ChangedFiles(root);
+        Timings.Timing status = getTimings().start("status", source);
+        try {
+            git.listChangedFiles(root, filter, changed);
+            status.addFiles(changed.size());
+        } finally {
+            status.stop();
+        }
+        TimestampCache cache = key != null && root.equals(key.getTopLevel()) ? getTimestampCache(key) : null;
+        String cacheKey = null;
+        if (cache != null) {
+            // the commit source only depends on HEAD and the changed files, so can be shared between worktrees
+            cacheKey = source + "@" + key.getHead()
+                    + ("commit".equals(source) ? "" : " index " + GitIndexReader.checksum(key.getGitDir()))
+                    + (filter.isAll() ? "" : " " + filter);
+            WorkingTreeState cached = cache.getWorkingTree(cacheKey, changed.getDigest());
+            if (cached != null) {
+                getLog().debug("Using cached working tree state for " + cacheKey);
+                return cached;
+            }
+        }
+        WorkingTreeState state;
+        Timings.Timing timing = getTimings().start("scan", source);
+        try {
+            switch (source) {
+                case "index":
+                    state = scanIndex(git, root, key, filter, changed, timing);
+                    break;
+                case "commit":
+                    state = scanChanges(git, changed);
+                    break;
+                default:
+                    state = scanWorkingTree(git, root, filter, changed, timing);
+                    break;
+            }
+        } finally {
+            timing.stop();
+        }
+        if (cache != null) {
+            cache.putWorkingTree(cacheKey, changed.getDigest(), state);
+        }
+        return state;
+    }
+
+    private WorkingTreeState scanWorkingTree(GitBackend git, File root, PathFilter filter, ChangedFiles changed,
+                                             Timings.Timing timing) throws ScmException {
+        WorkingTreeState.Builder builder = new WorkingTreeState.Builder();
+        FileTimestampScanner scanner = new FileTimestampScanner(root.toPath(), scanThreads);
+        try {
+            // the changed files have already been checked and the excluded files are never checked
+            git.listFiles(root,
+                    filter.filter(changed.size() == 0 ? scanner : new UnchangedFiles(changed, scanner)));
+        } catch (ScmException | RuntimeException e) {
+            scanner.abort();
+            throw e;
+        }
+        scanner.finish(builder);
+        timing.addFiles(scanner.getFiles());
+        return changed.recordTo(builder).build();
+    }
+
+    private WorkingTreeState scanChanges(GitBackend git, ChangedFiles changed)
+            throws ScmException, MojoExecutionException {
+        WorkingTreeState.Builder builder = new WorkingTreeState.Builder();
+        builder.baseline(git.getHeadCommitTime());
+        return changed.recordTo(builder).build();
+    }
+
+    private WorkingTreeState scanIndex(GitBackend git, final File root, GitSnapshot.Key key, final PathFilter filter,
+                                       final ChangedFiles changed, final Timings.Timing timing)
+            throws ScmException, IOException {
+        String relative = key == null ? null : GitSnapshot.relativize(key.getTopLevel(), root);
+        if (relative == null) {
+            return scanWorkingTree(git, root, filter, changed, timing);
+        }
+        final byte[] prefix = relative.getBytes(UTF_8);
+        final WorkingTreeState.Builder builder = changed.recordTo(new WorkingTreeState.Builder());
+        GitIndexReader.read(key.getGitDir(), new GitIndexReader.Visitor() {
+            @Override
+            public void visit(byte[] buffer, int offset, int length, long lastModified, boolean trusted) {
+                if (!startsWith(buffer, offset, length, prefix)) {
+                    return;
+                }
+                int start = offset + prefix.length;
+                int end = length - prefix.length;
+                if (!changed.contains(buffer, start, end) && filter.matches(buffer, start, end)) {
+                    if (!trusted) {
+                        lastModified = new File(root, new String(buffer, start, end, UTF_8)).lastModified();
+                    }
+                    builder.tracked(buffer, start, end, lastModified);
+                    timing.addFiles(1);
+                }
+            }
+        });
+        return builder.build();
+    }
+
+    private static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes on only the changed files of each commit that the filter selects.
+     */
+    private static class FilteredChanges implements GitBackend.ChangeVisitor {
+        private final GitBackend.ChangeVisitor visitor;
+        private final PathFilter filter;
+
+        FilteredChanges(GitBackend.ChangeVisitor visitor, PathFilter filter) {
+            this.visitor = visitor;
+            this.filter = filter;
+        }
+
+        @Override
+        public void commit(long commitTime) {
+            visitor.commit(commitTime);
+        }
+
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            if (filter.matches(buffer, offset, length)) {
+                visitor.consume(buffer, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Passes on only the paths that are not changed files, without decoding them.
+     */
+    private static class UnchangedFiles implements PathConsumer {
+        private final ChangedFiles changed;
+        private final PathConsumer consumer;
+
+        UnchangedFiles(ChangedFiles changed, PathConsumer consumer) {
+            this.changed = changed;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            if (!changed.contains(buffer, offset, length)) {
+                consumer.consume(buffer, offset, length);
+            }
         }
     }
 
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long each git command and each phase of a mojo takes, together with the bytes of output read and the
+ * number of files checked. Each timing is also emitted as a {@code com.github.stephenc.continuous.gittimestamp.Phase}
+ * JFR event when the JVM supports JFR, so that a recording shows where the time went.
+ */
+final class Timings {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Timing> completed = Collections.synchronizedList(new ArrayList<Timing>());
+
+    /**
+     * Starts timing.
+     *
+     * @param phase   the phase, e.g. {@code git} for a git command or {@code scan} for the scan of the files.
+     * @param command the command or the variant of the phase.
+     * @return the timing, which must be stopped.
+     */
+    Timing start(String phase, String command) {
+        return new Timing(phase, command);
+    }
+
+    /**
+     * Returns a summary with one entry per phase, e.g. {@code git 3x 25 ms 4096 bytes, scan 1x 120 ms 5300 files}.
+     *
+     * @return the summary or {@code null} if nothing was timed.
+     */
+    String summary() {
+        Map<String, long[]> phases = new LinkedHashMap<>();
+        synchronized (completed) {
+            for (Timing timing : completed) {
+                long[] totals = phases.get(timing.phase);
+                if (totals == null) {
+                    totals = new long[4];
+                    phases.put(timing.phase, totals);
+                }
+                totals[0]++;
+                totals[1] += timing.durationNanos;
+                totals[2] += timing.bytes.get();
+                totals[3] += timing.files.get();
+            }
+        }
+        if (phases.isEmpty()) {
+            return null;
+        }
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            long[] totals = phase.getValue();
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(phase.getKey()).append(' ').append(totals[0]).append("x ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(totals[1])).append(" ms");
+            if (totals[2] > 0) {
+                summary.append(' ').append(totals[2]).append(" bytes");
+            }
+            if (totals[3] > 0) {
+                summary.append(' ').append(totals[3]).append(" files");
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes every timing as JSON.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file could not be written.
+     */
+    void write(File file) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), UTF_8)) {
+            writer.write("{\"timings\":[");
+            synchronized (completed) {
+                boolean first = true;
+                for (Timing timing : completed) {
+                    writer.write(first ? "\n  {" : ",\n  {");
+                    first = false;
+                    writer.write("\"phase\":" + quote(timing.phase));
+                    writer.write(",\"command\":" + quote(timing.command));
+                    writer.write(",\"start\":" + timing.startMillis);
+                    writer.write(",\"durationNanos\":" + timing.durationNanos);
+                    writer.write(",\"bytes\":" + timing.bytes.get());
+                    writer.write(",\"files\":" + timing.files.get());
+                    writer.write("}");
+                }
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /**
+     * A phase that is being timed.
+     */
+    final class Timing {
+        private final String phase;
+        private final String command;
+        private final Object event = Jfr.begin();
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private long durationNanos = -1L;
+
+        private Timing(String phase, String command) {
+            this.phase = phase;
+            this.command = command;
+        }
+
+        /**
+         * Records bytes of output that were read.
+         *
+         * @param count the number of bytes.
+         */
+        void addBytes(long count) {
+            bytes.addAndGet(count);
+        }
+
+        /**
+         * Records files that were checked.
+         *
+         * @param count the number of files.
+         */
+        void addFiles(long count) {
+            files.addAndGet(count);
+        }
+
+        /**
+         * Stops timing, only the first call has any effect.
+         */
+        void stop() {
+            if (durationNanos >= 0) {
+                return;
+            }
+            durationNanos = System.nanoTime() - startNanos;
+            Jfr.commit(event, phase, command, bytes.get(), files.get());
+            completed.add(this);
+        }
+
+        /**
+         * Wraps a consumer so that the bytes of the records it is given are counted, including their terminators.
+         *
+         * @param consumer the consumer.
+         * @return the wrapped consumer.
+         */
+        PathConsumer counting(final PathConsumer consumer) {
+            return new PathConsumer() {
+                @Override
+                public void consume(byte[] buffer, int offset, int length) {
+                    bytes.addAndGet(length + 1);
+                    consumer.consume(buffer, offset, length);
+                }
+            };
+        }
+    }
+
+    /**
+     * Emits the JFR events through {@code jdk.jfr.EventFactory}, found by reflection as this plugin runs on JVMs
+     * without JFR. The events are only set up if a flight recorder was already running when the first timing started,
+     * e.g. with {@code -XX:StartFlightRecording} in {@code MAVEN_OPTS}, as otherwise setting them up costs more than
+     * the phases being timed. If anything goes wrong the events are disabled.
+     */
+    private static final class Jfr {
+        private static volatile boolean enabled;
+        private static Object factory;
+        private static Method newEvent;
+        private static Method begin;
+        private static Method end;
+        private static Method set;
+        private static Method commit;
+
+        static {
+            try {
+                enabled = setUp();
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // no JFR on this JVM
+                enabled = false;
+            }
+        }
+
+        private Jfr() {
+            throw new IllegalAccessError("Utility class");
+        }
+
+        private static boolean setUp() throws ReflectiveOperationException {
+            ClassLoader loader = ClassLoader.getSystemClassLoader();
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement", true, loader);
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", true, loader);
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory", true, loader);
+            Class<?> event = Class.forName("jdk.jfr.Event", true, loader);
+            Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder", true, loader);
+            if (!Boolean.TRUE.equals(flightRecorder.getMethod("isInitialized").invoke(null))) {
+                return false;
+            }
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(annotationType("jdk.jfr.Name", loader),
+                            "com.github.stephenc.continuous.gittimestamp.Phase"),
+                    annotation.newInstance(annotationType("jdk.jfr.Label", loader), "Git Timestamp Phase"),
+                    annotation.newInstance(annotationType("jdk.jfr.Category", loader),
+                            new String[]{"Maven", "Git Timestamp"}));
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+            List<Object> fields = Arrays.asList(
+                    field.newInstance(String.class, "phase"),
+                    field.newInstance(String.class, "command"),
+                    field.newInstance(long.class, "bytes"),
+                    field.newInstance(long.class, "files"));
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            newEvent = eventFactory.getMethod("newEvent");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotationType(String name, ClassLoader loader)
+                throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(name, true, loader);
+        }
+
+        static Object begin() {
+            if (!enabled) {
+                return null;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                enabled = false;
+                return null;
+            }
+        }
+
+        static void commit(Object event, String phase, String command, long bytes, long files) {
+            if (event == null || !enabled) {
+                return;
+            }
+            try {
+                end.invoke(event);
+                set.invoke(event, 0, phase);
+                set.invoke(event, 1, command);
+                set.invoke(event, 2, bytes);
+                set.invoke(event, 3, files);
+                commit.invoke(event);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                enabled = false;
+            }
+        }
+    }
+}
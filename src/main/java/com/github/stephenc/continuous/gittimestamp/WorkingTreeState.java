@@ -0,0 +1,293 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The last modified timestamps and changed files of a working tree. Paths are relative to the root of the scan and use
+ * {@code /} as the separator. The state is only retained per directory so that the state of a large working tree can
+ * be queried for any sub-directory without needing to keep every file.
+ */
+final class WorkingTreeState {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LAST_MODIFIED = 0;
+    private static final int CHANGED = 1;
+
+    private final NavigableMap<String, long[]> directories;
+    private final long baseline;
+
+    private WorkingTreeState(NavigableMap<String, long[]> directories, long baseline) {
+        this.directories = directories;
+        this.baseline = baseline;
+    }
+
+    private Iterable<long[]> within(String prefix) {
+        return directories.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+    }
+
+    /**
+     * Returns the most recent last modified timestamp of the files within the supplied directory.
+     *
+     * @param prefix the directory, either {@code ""} for the root or a relative path ending in {@code /}.
+     * @return the most recent last modified timestamp, which will be no earlier than the baseline, or {@code 0L} if
+     * there are no files and no baseline.
+     */
+    long getLastModified(String prefix) {
+        return Math.max(baseline, getFileLastModified(prefix));
+    }
+
+    /**
+     * Returns the most recent last modified timestamp of the files within the supplied directory, ignoring the
+     * baseline.
+     *
+     * @param prefix the directory, either {@code ""} for the root or a relative path ending in {@code /}.
+     * @return the most recent last modified timestamp or {@code 0L} if there are no files.
+     */
+    long getFileLastModified(String prefix) {
+        long lastModified = 0L;
+        for (long[] value : within(prefix)) {
+            lastModified = Math.max(lastModified, value[LAST_MODIFIED]);
+        }
+        return lastModified;
+    }
+
+    /**
+     * Returns {@code true} if there are changed files within the supplied directory.
+     *
+     * @param prefix the directory, either {@code ""} for the root or a relative path ending in {@code /}.
+     * @return {@code true} if there are changed files within the directory.
+     */
+    boolean hasChangedFiles(String prefix) {
+        for (long[] value : within(prefix)) {
+            if (value[CHANGED] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the timestamp that applies to every directory.
+     *
+     * @return the baseline timestamp or {@code 0L} if there is none.
+     */
+    long getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * Visits the state of each directory, e.g. to persist it.
+     *
+     * @param visitor the visitor.
+     */
+    void accept(Visitor visitor) {
+        for (Map.Entry<String, long[]> entry : directories.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue()[LAST_MODIFIED], entry.getValue()[CHANGED]);
+        }
+    }
+
+    /**
+     * Receives the state of each directory.
+     */
+    interface Visitor {
+        /**
+         * Visits a directory.
+         *
+         * @param directory    the directory, either {@code ""} for the root or a relative path ending in {@code /}.
+         * @param lastModified the most recent last modified timestamp of the files directly within the directory.
+         * @param changed      the number of changed files directly within the directory.
+         */
+        void visit(String directory, long lastModified, long changed);
+    }
+
+    /**
+     * Accumulates the state of a working tree. Not thread safe.
+     */
+    static final class Builder {
+        private final Map<String, long[]> directories = new HashMap<>();
+        private long baseline;
+        /**
+         * The directory of the last file recorded by its bytes, as consecutive files are mostly in the same directory.
+         */
+        private byte[] lastDirectory = new byte[256];
+        private int lastDirectoryLength = -1;
+        private long[] lastValue;
+
+        private long[] get(String path, boolean file) {
+            String directory = path;
+            if (file) {
+                int index = path.lastIndexOf('/');
+                directory = index == -1 ? "" : path.substring(0, index + 1);
+            }
+            long[] value = directories.get(directory);
+            if (value == null) {
+                value = new long[2];
+                directories.put(directory, value);
+            }
+            return value;
+        }
+
+        /**
+         * Records a tracked file.
+         *
+         * @param path         the path relative to the root of the scan.
+         * @param lastModified the last modified timestamp of the file.
+         * @return {@code this}.
+         */
+        Builder tracked(String path, long lastModified) {
+            long[] value = get(path, true);
+            value[LAST_MODIFIED] = Math.max(value[LAST_MODIFIED], lastModified);
+            return this;
+        }
+
+        /**
+         * Records a tracked file without decoding its path unless it is in a different directory from the previous
+         * file recorded this way.
+         *
+         * @param buffer       the buffer holding the UTF-8 encoded path relative to the root of the scan.
+         * @param offset       the offset of the path within the buffer.
+         * @param length       the length of the path.
+         * @param lastModified the last modified timestamp of the file.
+         * @return {@code this}.
+         */
+        Builder tracked(byte[] buffer, int offset, int length, long lastModified) {
+            long[] value = get(buffer, offset, length);
+            value[LAST_MODIFIED] = Math.max(value[LAST_MODIFIED], lastModified);
+            return this;
+        }
+
+        private long[] get(byte[] buffer, int offset, int length) {
+            int directoryLength = 0;
+            for (int i = offset + length - 1; i >= offset; i--) {
+                if (buffer[i] == '/') {
+                    directoryLength = i + 1 - offset;
+                    break;
+                }
+            }
+            if (lastValue != null && directoryLength == lastDirectoryLength) {
+                boolean same = true;
+                for (int i = 0; i < directoryLength && same; i++) {
+                    same = buffer[offset + i] == lastDirectory[i];
+                }
+                if (same) {
+                    return lastValue;
+                }
+            }
+            if (lastDirectory.length < directoryLength) {
+                lastDirectory = new byte[Math.max(directoryLength, lastDirectory.length * 2)];
+            }
+            System.arraycopy(buffer, offset, lastDirectory, 0, directoryLength);
+            lastDirectoryLength = directoryLength;
+            lastValue = get(new String(buffer, offset, directoryLength, UTF_8), false);
+            return lastValue;
+        }
+
+        /**
+         * Records the most recent last modified timestamp of the tracked files directly within a directory.
+         *
+         * @param directory    the directory relative to the root of the scan, either {@code ""} for the root or a
+         *                     relative path ending in {@code /}.
+         * @param lastModified the last modified timestamp.
+         * @return {@code this}.
+         */
+        Builder directory(String directory, long lastModified) {
+            long[] value = get(directory, false);
+            value[LAST_MODIFIED] = Math.max(value[LAST_MODIFIED], lastModified);
+            return this;
+        }
+
+        /**
+         * Restores the state of a directory as reported by {@link WorkingTreeState#accept(Visitor)}.
+         *
+         * @param directory    the directory relative to the root of the scan, either {@code ""} for the root or a
+         *                     relative path ending in {@code /}.
+         * @param lastModified the last modified timestamp.
+         * @param changed      the number of changed files.
+         * @return {@code this}.
+         */
+        Builder directory(String directory, long lastModified, long changed) {
+            long[] value = get(directory, false);
+            value[LAST_MODIFIED] = Math.max(value[LAST_MODIFIED], lastModified);
+            value[CHANGED] += changed;
+            return this;
+        }
+
+        /**
+         * Records a changed file.
+         *
+         * @param path         the path relative to the root of the scan.
+         * @param lastModified the last modified timestamp of the file.
+         * @return {@code this}.
+         */
+        Builder changed(String path, long lastModified) {
+            long[] value = get(path, true);
+            value[LAST_MODIFIED] = Math.max(value[LAST_MODIFIED], lastModified);
+            value[CHANGED]++;
+            return this;
+        }
+
+        /**
+         * Records a changed file without decoding its path unless it is in a different directory from the previous
+         * file recorded by its bytes.
+         *
+         * @param buffer       the buffer holding the UTF-8 encoded path relative to the root of the scan.
+         * @param offset       the offset of the path within the buffer.
+         * @param length       the length of the path.
+         * @param lastModified the last modified timestamp of the file.
+         * @return {@code this}.
+         */
+        Builder changed(byte[] buffer, int offset, int length, long lastModified) {
+            long[] value = get(buffer, offset, length);
+            value[LAST_MODIFIED] = Math.max(value[LAST_MODIFIED], lastModified);
+            value[CHANGED]++;
+            return this;
+        }
+
+        /**
+         * Adds the state accumulated by another builder.
+         *
+         * @param other the other builder.
+         * @return {@code this}.
+         */
+        Builder merge(Builder other) {
+            for (Map.Entry<String, long[]> entry : other.directories.entrySet()) {
+                directory(entry.getKey(), entry.getValue()[LAST_MODIFIED], entry.getValue()[CHANGED]);
+            }
+            return baseline(other.baseline);
+        }
+
+        /**
+         * Records a timestamp that applies to every directory, e.g. the time of the commit that is checked out.
+         *
+         * @param lastModified the timestamp.
+         * @return {@code this}.
+         */
+        Builder baseline(long lastModified) {
+            baseline = Math.max(baseline, lastModified);
+            return this;
+        }
+
+        WorkingTreeState build() {
+            return new WorkingTreeState(new TreeMap<>(directories), baseline);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.ScmException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CliGitBackendTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TestRepository repository;
+    private AbstractGitOpsMojo mojo;
+
+    @Before
+    public void createRepository() throws IOException {
+        repository = TestRepository.create();
+        repository.commit("initial", "a.txt", "d/b.txt", "d/c.txt", "d/with space.txt", "d/e/f.txt", "g.txt",
+                "r.txt", "u.txt");
+        mojo = new AbstractGitOpsMojo() {
+            @Override
+            public void execute() {
+            }
+        };
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void cleanWorkingTreeHasNoChangedFiles() throws Exception {
+        assertEquals(Collections.<String>emptySet(), listChangedFiles(repository.getDir(), PathFilter.ALL));
+    }
+
+    @Test
+    public void listsModifiedStagedAndDeletedFiles() throws Exception {
+        repository.write("a.txt", "modified\n");
+        repository.write("d/with space.txt", "staged\n");
+        repository.git("add", "d/with space.txt");
+        FileUtils.forceDelete(repository.file("d/c.txt"));
+        repository.git("rm", "-q", "--cached", "g.txt");
+        repository.write("untracked.txt", "untracked\n");
+        assertEquals(set("a.txt", "d/c.txt", "d/with space.txt", "g.txt"),
+                listChangedFiles(repository.getDir(), PathFilter.ALL));
+    }
+
+    @Test
+    public void listsTheNewPathOfARename() throws Exception {
+        repository.git("mv", "r.txt", "d/renamed.txt");
+        repository.write("a.txt", "modified\n");
+        // the original path is a separate record that must not be taken for an entry
+        assertEquals(set("a.txt", "d/renamed.txt"), listChangedFiles(repository.getDir(), PathFilter.ALL));
+    }
+
+    @Test
+    public void listsAddedFilesOnlyIfTheyExist() throws Exception {
+        repository.write("added.txt", "added\n");
+        repository.write("gone.txt", "gone\n");
+        repository.git("add", "added.txt", "gone.txt");
+        FileUtils.forceDelete(repository.file("gone.txt"));
+        // gone.txt is deleted from the working tree, so it is a change even though it was never committed
+        assertEquals(set("added.txt", "gone.txt"), listChangedFiles(repository.getDir(), PathFilter.ALL));
+    }
+
+    @Test
+    public void listsUnmergedFiles() throws Exception {
+        repository.git("checkout", "-q", "-b", "side");
+        repository.commit("side", "u.txt");
+        repository.git("checkout", "-q", "-");
+        repository.commit("main", "u.txt");
+        try {
+            repository.git("merge", "-q", "side");
+            fail("the merge should conflict");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(set("u.txt"), listChangedFiles(repository.getDir(), PathFilter.ALL));
+    }
+
+    @Test
+    public void pathsAreRelativeToTheRoot() throws Exception {
+        repository.write("a.txt", "modified\n");
+        repository.write("d/b.txt", "modified\n");
+        repository.write("d/e/f.txt", "modified\n");
+        assertEquals(set("b.txt", "e/f.txt"), listChangedFiles(repository.file("d"), PathFilter.ALL));
+        assertEquals(set("f.txt"), listChangedFiles(repository.file("d/e"), PathFilter.ALL));
+    }
+
+    @Test
+    public void onlyListsTheFilesThatTheFilterSelects() throws Exception {
+        repository.write("a.txt", "modified\n");
+        repository.write("d/b.txt", "modified\n");
+        repository.write("d/e/f.txt", "modified\n");
+        assertEquals(set("d/b.txt"), listChangedFiles(repository.getDir(),
+                PathFilter.compile(Collections.singletonList("d/*.txt"), null)));
+        assertEquals(set("a.txt", "d/b.txt"), listChangedFiles(repository.getDir(),
+                PathFilter.compile(null, Collections.singletonList("d/e"))));
+    }
+
+    @Test
+    public void findsChangesWithinADirectory() throws Exception {
+        PathFilter txt = PathFilter.compile(Collections.singletonList("**/*.txt"), null);
+        assertFalse(hasChangedFiles("d/", PathFilter.ALL));
+        assertFalse(hasUntrackedFiles("d/", PathFilter.ALL));
+        repository.write("d/e/new.txt", "untracked\n");
+        assertTrue(hasUntrackedFiles("d/", PathFilter.ALL));
+        assertTrue(hasUntrackedFiles("d/", txt));
+        assertTrue(hasUntrackedFiles("d/e/", txt));
+        assertFalse(hasUntrackedFiles("d/", PathFilter.compile(Collections.singletonList("**/*.java"), null)));
+        repository.write("d/b.txt", "modified\n");
+        assertTrue(hasChangedFiles("d/", PathFilter.ALL));
+        assertTrue(hasChangedFiles("d/", txt));
+        assertFalse(hasChangedFiles("d/e/", PathFilter.ALL));
+        assertFalse(hasChangedFiles("d/e/", txt));
+    }
+
+    @Test
+    public void ignoresChangesOutsideTheDirectory() throws Exception {
+        repository.write("a.txt", "modified\n");
+        repository.write("untracked.txt", "untracked\n");
+        PathFilter txt = PathFilter.compile(Collections.singletonList("**/*.txt"), null);
+        assertTrue(hasChangedFiles("", PathFilter.ALL));
+        assertTrue(hasUntrackedFiles("", txt));
+        assertFalse(hasChangedFiles("d/", PathFilter.ALL));
+        assertFalse(hasChangedFiles("d/", txt));
+        assertFalse(hasUntrackedFiles("d/", PathFilter.ALL));
+        assertFalse(hasUntrackedFiles("d/", txt));
+    }
+
+    private boolean hasChangedFiles(String prefix, PathFilter filter) throws ScmException {
+        CliGitBackend backend = new CliGitBackend(mojo, repository.getDir());
+        try {
+            backend.resolveSnapshotKey();
+            return backend.hasChangedFiles(repository.getDir(), prefix, filter);
+        } finally {
+            backend.close();
+        }
+    }
+
+    private boolean hasUntrackedFiles(String prefix, PathFilter filter) throws ScmException {
+        CliGitBackend backend = new CliGitBackend(mojo, repository.getDir());
+        try {
+            backend.resolveSnapshotKey();
+            return backend.hasUntrackedFiles(repository.getDir(), prefix, filter);
+        } finally {
+            backend.close();
+        }
+    }
+
+    private Set<String> listChangedFiles(File root, PathFilter filter) throws ScmException {
+        CliGitBackend backend = new CliGitBackend(mojo, root);
+        final Set<String> paths = new TreeSet<>();
+        try {
+            backend.resolveSnapshotKey();
+            backend.listChangedFiles(root, filter, new PathConsumer() {
+                @Override
+                public void consume(byte[] buffer, int offset, int length) {
+                    paths.add(new String(buffer, offset, length, UTF_8));
+                }
+            });
+        } finally {
+            backend.close();
+        }
+        return paths;
+    }
+
+    private static Set<String> set(String... paths) {
+        return new TreeSet<>(Arrays.asList(paths));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GitIndexReaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TestRepository repository;
+
+    @Before
+    public void createRepository() throws IOException {
+        repository = TestRepository.create();
+        repository.commit("initial", "b", "d/e", "d/f", "g.txt");
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void version2() throws IOException {
+        repository.git("update-index", "--index-version", "2");
+        assertMatchesGit();
+    }
+
+    @Test
+    public void version3() throws IOException {
+        // an intent to add entry needs the extended flags
+        repository.write("a", "new\n");
+        repository.git("add", "-N", "a");
+        repository.git("update-index", "--index-version", "3");
+        Map<String, Boolean> entries = read();
+        assertEquals(paths(), new ArrayList<>(entries.keySet()));
+        assertFalse("intent to add is not trusted", entries.get("a"));
+    }
+
+    @Test
+    public void version4() throws IOException {
+        repository.git("update-index", "--index-version", "4");
+        assertMatchesGit();
+    }
+
+    @Test
+    public void timestampsAreThoseOfTheFiles() throws IOException {
+        final Map<String, Long> timestamps = new LinkedHashMap<>();
+        GitIndexReader.read(repository.getGitDir(), new GitIndexReader.Visitor() {
+            @Override
+            public void visit(byte[] buffer, int offset, int length, long lastModified, boolean trusted) {
+                timestamps.put(new String(buffer, offset, length, UTF_8), lastModified);
+            }
+        });
+        for (Map.Entry<String, Long> entry : timestamps.entrySet()) {
+            // the index has nanoseconds, the file system may not
+            assertEquals(entry.getKey(), repository.file(entry.getKey()).lastModified() / 1000L,
+                    entry.getValue() / 1000L);
+        }
+    }
+
+    @Test
+    public void skipWorktreeEntriesAreNotVisited() throws IOException {
+        repository.git("update-index", "--skip-worktree", "b");
+        List<String> expected = paths();
+        expected.remove("b");
+        assertEquals(expected, new ArrayList<>(read().keySet()));
+    }
+
+    @Test
+    public void conflictedPathsAreVisitedOnce() throws IOException {
+        repository.git("checkout", "-q", "-b", "other");
+        repository.commit("other", "c", "d/e");
+        repository.git("checkout", "-q", "-");
+        repository.commit("main", "c", "d/e");
+        try {
+            repository.git("merge", "-q", "other");
+            fail("expected an add/add and a content conflict");
+        } catch (IOException expected) {
+            // conflicted
+        }
+        Map<String, Boolean> entries = read();
+        assertEquals(paths(), new ArrayList<>(entries.keySet()));
+        assertFalse(entries.get("c"));
+        assertFalse(entries.get("d/e"));
+        assertEquals(paths(), list(""));
+    }
+
+    @Test
+    public void splitIndex() throws IOException {
+        // enough entries that the changes below stay in the split index rather than rewriting the shared index
+        String[] many = new String[40];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = "m/" + i;
+        }
+        repository.commit("many", many);
+        repository.git("update-index", "--split-index");
+        // replace, delete and add entries that sort before, between and after those of the shared index
+        repository.commit("split", "0first", "d/a", "d/f", "z/last");
+        repository.git("rm", "-q", "g.txt");
+        assertTrue("the index is split", hasSharedIndex());
+        assertMatchesGit();
+    }
+
+    @Test
+    public void linkToNoSharedIndex() throws IOException {
+        // a link extension with a null id is written when the split index holds every entry
+        List<String> expected = paths();
+        File index = new File(repository.getGitDir(), "index");
+        byte[] bytes = FileUtils.readFileToByteArray(index);
+        byte[] link = new byte[8 + 20];
+        System.arraycopy("link".getBytes(UTF_8), 0, link, 0, 4);
+        link[7] = 20;
+        byte[] rewritten = new byte[bytes.length + link.length];
+        System.arraycopy(bytes, 0, rewritten, 0, bytes.length - 20);
+        System.arraycopy(link, 0, rewritten, bytes.length - 20, link.length);
+        System.arraycopy(bytes, bytes.length - 20, rewritten, rewritten.length - 20, 20);
+        FileUtils.writeByteArrayToFile(index, rewritten);
+        assertEquals(expected, new ArrayList<>(read().keySet()));
+    }
+
+    @Test
+    public void listRemovesThePrefix() throws IOException {
+        assertEquals(Arrays.asList("e", "f"), list("d/"));
+    }
+
+    @Test
+    public void checksumChangesWhenTheIndexIsWritten() throws IOException {
+        String before = GitIndexReader.checksum(repository.getGitDir());
+        assertEquals(40, before.length());
+        repository.commit("changed", "b");
+        assertFalse(before.equals(GitIndexReader.checksum(repository.getGitDir())));
+    }
+
+    private boolean hasSharedIndex() {
+        for (String name : repository.getGitDir().list()) {
+            if (name.startsWith("sharedindex.")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void assertMatchesGit() throws IOException {
+        assertEquals(paths(), new ArrayList<>(read().keySet()));
+        assertEquals(paths(), list(""));
+    }
+
+    /**
+     * Returns the paths of the index according to git, in index order and each only once.
+     */
+    private List<String> paths() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (String path : repository.git("-c", "core.quotePath=false", "ls-files", "-z").split("\0")) {
+            if (!path.isEmpty() && !paths.contains(path)) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private Map<String, Boolean> read() throws IOException {
+        final Map<String, Boolean> entries = new LinkedHashMap<>();
+        GitIndexReader.read(repository.getGitDir(), new GitIndexReader.Visitor() {
+            @Override
+            public void visit(byte[] buffer, int offset, int length, long lastModified, boolean trusted) {
+                String path = new String(buffer, offset, length, UTF_8);
+                if (entries.put(path, trusted) != null) {
+                    fail(path + " was visited twice");
+                }
+            }
+        });
+        return entries;
+    }
+
+    private List<String> list(String prefix) throws IOException {
+        final List<String> paths = new ArrayList<>();
+        GitIndexReader.list(repository.getGitDir(), prefix.getBytes(UTF_8), new PathConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                paths.add(new String(buffer, offset, length, UTF_8));
+            }
+        });
+        return paths;
+    }
+}
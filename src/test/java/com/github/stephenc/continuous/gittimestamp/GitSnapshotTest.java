@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class GitSnapshotTest {
+
+    @Test
+    public void moduleHistoriesAreKeptPerModulesBetweenSessions() throws Exception {
+        try (TestRepository repository = TestRepository.create()) {
+            repository.commit("a", "a/A.java");
+            repository.commit("b", "b/B.java");
+            repository.commit("a again", "a/A.java");
+            GitSnapshot.Key key = new GitSnapshot.Key(repository.getDir(), repository.getGitDir(),
+                    repository.git("rev-parse", "HEAD").trim());
+            AtomicInteger loads = new AtomicInteger();
+
+            GitSnapshot first = GitSnapshot.forSession(newSession(), key, true, new SystemStreamLog());
+            ModuleHistory history = first.getModuleHistory("", Collections.singleton("a/"),
+                    loader(Collections.singleton("a/"), loads));
+            assertEquals(2L, history.getCommitCount("a/"));
+
+            // a later build of the same process with more modules
+            GitSnapshot second = GitSnapshot.forSession(newSession(), key, true, new SystemStreamLog());
+            assertSame(first, second);
+            history = second.getModuleHistory("", Arrays.asList("a/", "b/"), loader(Arrays.asList("a/", "b/"), loads));
+            assertEquals(2, loads.get());
+            assertEquals(2L, history.getCommitCount("a/"));
+            assertEquals(1L, history.getCommitCount("b/"));
+
+            // the same modules in another order
+            assertSame(history,
+                    second.getModuleHistory("", Arrays.asList("b/", "a/"), loader(Arrays.asList("b/", "a/"), loads)));
+            assertEquals(2, loads.get());
+        }
+    }
+
+    private static MavenSession newSession() {
+        return new MavenSession(null, null, new DefaultMavenExecutionRequest(), new DefaultMavenExecutionResult());
+    }
+
+    private static Callable<ModuleHistory> loader(final Collection<String> prefixes, final AtomicInteger loads) {
+        return new Callable<ModuleHistory>() {
+            @Override
+            public ModuleHistory call() {
+                loads.incrementAndGet();
+                ModuleHistory history = new ModuleHistory(prefixes);
+                history.restore("a/", 2L, 0L);
+                if (prefixes.contains("b/")) {
+                    history.restore("b/", 1L, 0L);
+                }
+                return history;
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JGitBackendTest {
+    private TestRepository repository;
+
+    @Before
+    public void createRepository() throws IOException {
+        repository = TestRepository.create();
+        repository.commit("initial", "a.txt", "d/b.txt");
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void plainRepository() {
+        assertTrue(JGitBackend.isSupported(repository.getDir()));
+        assertTrue(JGitBackend.isSupported(repository.file("d")));
+    }
+
+    @Test
+    public void indexVersion4() throws IOException {
+        repository.git("update-index", "--index-version", "4");
+        assertFalse(JGitBackend.isSupported(repository.getDir()));
+    }
+
+    @Test
+    public void linkedWorktree() throws IOException {
+        repository.git("worktree", "add", "-q", "--detach", "linked");
+        assertFalse(JGitBackend.isSupported(repository.file("linked")));
+    }
+
+    @Test
+    public void sha256() throws IOException {
+        repository.git("init", "-q", "--object-format=sha256", "sha256");
+        TestRepository.run(repository.file("sha256"), "commit", "-q", "--allow-empty", "-m", "initial");
+        assertFalse(JGitBackend.isSupported(repository.file("sha256")));
+    }
+
+    @Test
+    public void refStorage() throws IOException {
+        repository.git("config", "extensions.refStorage", "files");
+        assertTrue(JGitBackend.isSupported(repository.getDir()));
+        repository.git("config", "extensions.refStorage", "reftable");
+        assertFalse(JGitBackend.isSupported(repository.getDir()));
+        repository.git("config", "--unset", "extensions.refStorage");
+        FileUtils.forceMkdir(repository.file(".git/reftable"));
+        assertFalse(JGitBackend.isSupported(repository.getDir()));
+    }
+
+    @Test
+    public void filters() throws IOException {
+        repository.write(".gitattributes", "*.txt text\n");
+        repository.write("d/.gitattributes", "*.bin -text\n");
+        repository.git("add", ".gitattributes", "d/.gitattributes");
+        assertTrue(JGitBackend.isSupported(repository.getDir()));
+        repository.write("d/.gitattributes", "*.bin filter=lfs diff=lfs merge=lfs -text\n");
+        assertFalse(JGitBackend.isSupported(repository.getDir()));
+        repository.write("d/.gitattributes", "*.bin -text\n");
+        repository.write(".gitattributes", "*.bin filter=lfs\n");
+        assertFalse(JGitBackend.isSupported(repository.getDir()));
+        repository.write(".gitattributes", "*.txt text\n");
+        repository.write(".git/info/attributes", "*.bin filter=lfs\n");
+        assertFalse(JGitBackend.isSupported(repository.getDir()));
+    }
+}
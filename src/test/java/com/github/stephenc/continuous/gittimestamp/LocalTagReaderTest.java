@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalTagReaderTest {
+    /**
+     * Tags that are prefixes of each other or sort next to each other, both lightweight and annotated.
+     */
+    private static final List<String> TAGS = Arrays.asList("1.0", "1.0.1", "1.0.10", "1.0.2", "1.0-rc", "1.1",
+            "release/2.0", "release/2.0.1", "z");
+    private static final List<String> ABSENT = Arrays.asList("", "0.9", "1", "1.0.", "1.0.3", "1.00", "1.2",
+            "release", "release/", "release/2", "feature", "z.1", "~");
+
+    private TestRepository repository;
+
+    @Before
+    public void createRepository() throws IOException {
+        repository = TestRepository.create();
+        repository.commit("initial");
+        repository.git("branch", "feature");
+        boolean annotated = false;
+        for (String tag : TAGS) {
+            if (annotated) {
+                repository.git("tag", "-a", "-m", "annotated", tag);
+            } else {
+                repository.git("tag", tag);
+            }
+            annotated = !annotated;
+        }
+        for (int i = 0; i < 100; i++) {
+            repository.git("tag", "-a", "-m", "annotated", "bulk-" + i);
+        }
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void looseRefs() throws IOException {
+        assertFalse(repository.file(".git/packed-refs").exists());
+        assertTags(repository.getGitDir());
+    }
+
+    @Test
+    public void sortedPackedRefs() throws IOException {
+        repository.git("pack-refs", "--all");
+        assertTrue(packedRefs().get(0).contains(" sorted "));
+        assertTags(repository.getGitDir());
+    }
+
+    @Test
+    public void unsortedPackedRefs() throws IOException {
+        repository.git("pack-refs", "--all");
+        List<String> lines = packedRefs();
+        List<String> reversed = new ArrayList<>();
+        reversed.add(lines.get(0).replace(" sorted ", " "));
+        // reverse the records, keeping the peeled id of a ref on the line after it
+        for (int i = lines.size() - 1; i > 0; i--) {
+            if (lines.get(i).startsWith("^")) {
+                reversed.add(lines.get(--i));
+                reversed.add(lines.get(i + 1));
+            } else {
+                reversed.add(lines.get(i));
+            }
+        }
+        FileUtils.writeLines(repository.file(".git/packed-refs"), "UTF-8", reversed, "\n");
+        assertTags(repository.getGitDir());
+    }
+
+    @Test
+    public void packedRefsWithoutHeader() throws IOException {
+        repository.git("pack-refs", "--all");
+        List<String> lines = packedRefs();
+        FileUtils.writeLines(repository.file(".git/packed-refs"), "UTF-8", lines.subList(1, lines.size()), "\n");
+        assertTags(repository.getGitDir());
+    }
+
+    @Test
+    public void looseAndPackedRefs() throws IOException {
+        repository.git("pack-refs", "--all");
+        repository.git("tag", "1.0.3");
+        repository.git("tag", "-d", "1.1");
+        LocalTagReader reader = LocalTagReader.open(repository.getGitDir());
+        assertTrue(reader.exists("1.0.3"));
+        assertFalse(reader.exists("1.1"));
+        assertTrue(reader.exists("1.0.2"));
+    }
+
+    @Test
+    public void linkedWorktree() throws IOException {
+        repository.git("worktree", "add", "-q", "--detach", "linked");
+        File gitDir = new File(repository.git("-C", "linked", "rev-parse", "--absolute-git-dir").trim());
+        assertTags(gitDir);
+        repository.git("pack-refs", "--all");
+        assertTags(gitDir);
+    }
+
+    @Test
+    public void reftableIsNotRead() throws IOException {
+        FileUtils.forceMkdir(repository.file(".git/reftable"));
+        assertNull(LocalTagReader.open(repository.getGitDir()));
+    }
+
+    private List<String> packedRefs() throws IOException {
+        return FileUtils.readLines(repository.file(".git/packed-refs"), "UTF-8");
+    }
+
+    private static void assertTags(File gitDir) throws IOException {
+        LocalTagReader reader = LocalTagReader.open(gitDir);
+        for (String tag : TAGS) {
+            assertTrue(tag, reader.exists(tag));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue("bulk-" + i, reader.exists("bulk-" + i));
+        }
+        for (String tag : ABSENT) {
+            assertFalse(tag, reader.exists(tag));
+        }
+        assertFalse(reader.exists("bulk-100"));
+    }
+}
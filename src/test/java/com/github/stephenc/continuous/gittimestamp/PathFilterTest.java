@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PathFilterTest {
+    private static final String[] PATHS = {
+            "B.java", "pom.xml", "pom.xml.bak", "src/README.md", "src/main/A.java", "src/main/x/B.java",
+            "src/test/C.java", "src/test/resources/b1.txt", "src/test/resources/d1.txt", "src/x/gen1/Y.java",
+            "src/x/gen12/Y.java", "docs/x.properties", "a/b/c.properties", "other/A.java", "srcx/A.java"
+    };
+
+    @Test
+    public void noPatternsSelectEverything() {
+        PathFilter filter = PathFilter.compile(null, Collections.<String>emptyList());
+        assertSame(PathFilter.ALL, filter);
+        assertTrue(filter.matches("any/path"));
+        assertEquals(Collections.singletonList("."), filter.toPathspecs());
+    }
+
+    @Test
+    public void literalsMatchThePathAndEverythingBelowIt() {
+        PathFilter filter = PathFilter.compile(Arrays.asList("src/", "/pom.xml"), null);
+        assertTrue(filter.matches("src"));
+        assertTrue(filter.matches("src/main/A.java"));
+        assertTrue(filter.matches("pom.xml"));
+        assertFalse(filter.matches("srcx/A.java"));
+        assertFalse(filter.matches("pom.xml.bak"));
+        assertFalse(filter.matches("other/src/A.java"));
+    }
+
+    @Test
+    public void starDoesNotMatchSlash() {
+        PathFilter filter = PathFilter.compile(Collections.singletonList("src/*.md"), null);
+        assertTrue(filter.matches("src/README.md"));
+        assertFalse(filter.matches("src/main/README.md"));
+    }
+
+    @Test
+    public void leadingDoubleStarMatchesAnyDirectories() {
+        PathFilter filter = PathFilter.compile(Collections.singletonList("**/B.java"), null);
+        assertTrue(filter.matches("B.java"));
+        assertTrue(filter.matches("src/B.java"));
+        assertTrue(filter.matches("src/main/x/B.java"));
+        assertFalse(filter.matches("src/AB.java"));
+    }
+
+    @Test
+    public void innerDoubleStarMatchesZeroOrMoreDirectories() {
+        PathFilter filter = PathFilter.compile(Collections.singletonList("src/**/B.java"), null);
+        assertTrue(filter.matches("src/B.java"));
+        assertTrue(filter.matches("src/main/x/B.java"));
+        assertFalse(filter.matches("srcx/B.java"));
+        assertFalse(filter.matches("B.java"));
+    }
+
+    @Test
+    public void characterClasses() {
+        PathFilter filter = PathFilter.compile(Arrays.asList("[a-c]1.txt", "[!a-z]2.txt", "[]x]3.txt", "[y"), null);
+        assertTrue(filter.matches("b1.txt"));
+        assertFalse(filter.matches("d1.txt"));
+        assertTrue(filter.matches("D2.txt"));
+        assertFalse(filter.matches("d2.txt"));
+        assertTrue(filter.matches("]3.txt"));
+        assertTrue(filter.matches("x3.txt"));
+        assertFalse(filter.matches("y3.txt"));
+        // not a class, so a literal [
+        assertTrue(filter.matches("[y"));
+    }
+
+    @Test
+    public void questionMarkMatchesAWholeCharacter() {
+        PathFilter filter = PathFilter.compile(Collections.singletonList("?t?.txt"), null);
+        assertTrue(filter.matches("été.txt"));
+        assertTrue(filter.matches("€t€.txt"));
+        assertTrue(filter.matches("ata.txt"));
+        assertFalse(filter.matches("éét.txt"));
+        assertFalse(filter.matches("/t/.txt"));
+        assertFalse(PathFilter.compile(Collections.singletonList("??t??.txt"), null).matches("été.txt"));
+    }
+
+    @Test
+    public void questionMarksAreWidenedForGit() {
+        PathFilter filter = PathFilter.compile(Arrays.asList("?t?.txt", "[?]x"), Arrays.asList("gen?", "c"));
+        // git would match ? against a single byte of a multibyte character, and an exclude must not exclude more
+        assertEquals(Arrays.asList(":(glob)*t*.txt", ":(glob)*t*.txt/**", ":(glob)[?]x", ":(glob)[?]x/**",
+                ":(glob,exclude)c"), filter.toPathspecs());
+    }
+
+    @Test
+    public void excludesWinOverIncludes() {
+        PathFilter filter = PathFilter.compile(Collections.singletonList("src"), Arrays.asList("**/*.md", "src/x"));
+        assertTrue(filter.matches("src/main/A.java"));
+        assertFalse(filter.matches("src/README.md"));
+        assertFalse(filter.matches("src/x/gen1/Y.java"));
+        assertFalse(filter.matches("pom.xml"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void patternsCannotLeaveTheRoot() {
+        PathFilter.compile(Collections.singletonList("src/../../x"), null);
+    }
+
+    @Test
+    public void includedPrefixesStopAtTheFirstWildcard() {
+        assertEquals(Arrays.asList("src/main", "pom.xml", "a/b"),
+                PathFilter.compile(Arrays.asList("src/main/**/*.java", "pom.xml", "a/b/c*"), null)
+                        .getIncludedPrefixes());
+        assertEquals(Collections.<String>emptyList(),
+                PathFilter.compile(Arrays.asList("src", "**/*.java"), null).getIncludedPrefixes());
+        assertEquals(Collections.<String>emptyList(),
+                PathFilter.compile(Collections.singletonList("s?c/A.java"), null).getIncludedPrefixes());
+        assertEquals(Collections.<String>emptyList(),
+                PathFilter.compile(null, Collections.singletonList("src")).getIncludedPrefixes());
+    }
+
+    @Test
+    public void selectsWhatGitSelects() throws IOException {
+        try (TestRepository repository = TestRepository.create()) {
+            repository.commit("initial", PATHS);
+            assertSelectsWhatGitSelects(repository, Collections.singletonList("**/*.java"), null);
+            assertSelectsWhatGitSelects(repository, Collections.singletonList("src/**/B.java"), null);
+            assertSelectsWhatGitSelects(repository, Arrays.asList("src/", "pom.xml", "**/*.properties"),
+                    Arrays.asList("docs", "**/*.md", "src/test/resources/[a-c]*.txt"));
+            assertSelectsWhatGitSelects(repository, null, Arrays.asList("src/*/gen1*", "*.bak"));
+            assertSelectsWhatGitSelects(repository, Collections.singletonList("src/*/gen1"), null);
+            assertSelectsWhatGitSelects(repository, Collections.singletonList("src/[a-x]"), null);
+            // only a superset for git, the filter decides
+            assertSelectsWhatGitSelects(repository, Collections.singletonList("src/x/gen?/Y.java"), null);
+            assertSelectsWhatGitSelects(repository, null, Collections.singletonList("src/x/gen?"));
+        }
+    }
+
+    private static void assertSelectsWhatGitSelects(TestRepository repository, List<String> includes,
+                                                    List<String> excludes) throws IOException {
+        PathFilter filter = PathFilter.compile(includes, excludes);
+        List<String> args = new ArrayList<>(Arrays.asList("ls-files", "-z", "--"));
+        args.addAll(filter.toPathspecs());
+        Set<String> listed = new TreeSet<>();
+        for (String path : repository.git(args.toArray(new String[0])).split("\0")) {
+            if (!path.isEmpty()) {
+                listed.add(path);
+            }
+        }
+        Set<String> expected = new TreeSet<>();
+        for (String path : PATHS) {
+            if (filter.matches(path)) {
+                expected.add(path);
+            }
+        }
+        if (filter.toString().contains("?")) {
+            assertTrue(filter.toString(), listed.containsAll(expected));
+        } else {
+            assertEquals(filter.toString(), expected, listed);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TagIndexTest {
+    private static final String FORMAT = "@{project.artifactId}-@{project.version}";
+
+    private TestRepository repository;
+
+    @Before
+    public void createRepository() throws IOException {
+        repository = TestRepository.create();
+        repository.commit("initial");
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void firstCandidateIsFreeWithoutTags() throws Exception {
+        TagNameTemplate template = TagNameTemplate.compile(FORMAT, "org.example", "demo");
+        assertNextFree(template, "1.57", "1.57", "1.57.0");
+    }
+
+    @Test
+    public void skipsTheTakenRepeats() throws Exception {
+        tag("demo-1.57", "demo-1.57.1", "demo-1.57.2", "demo-1.57.4", "demo-1.58.3");
+        TagNameTemplate template = TagNameTemplate.compile(FORMAT, "org.example", "demo");
+        assertNextFree(template, "1.57", "1.57.3", "1.57.0");
+        assertNextFree(template, "1.58", "1.58", "1.58.0");
+    }
+
+    @Test
+    public void bareVersionAndZeroRepeatAreDistinct() throws Exception {
+        tag("demo-1.57.0", "demo-1.57.1");
+        TagNameTemplate template = TagNameTemplate.compile(FORMAT, "org.example", "demo");
+        assertNextFree(template, "1.57", "1.57", "1.57.2");
+    }
+
+    @Test
+    public void ignoresTagsThatAreNotRepeats() throws Exception {
+        tag("demo-1.57", "demo-1.57.01", "demo-1.57.1-rc", "demo-1.57.x", "demo-1.570", "other-1.57.1",
+                "demo-1.57.99999999999999999999");
+        TagNameTemplate template = TagNameTemplate.compile(FORMAT, "org.example", "demo");
+        assertNextFree(template, "1.57", "1.57.1", "1.57.0");
+    }
+
+    @Test
+    public void versionCanBeAPrefixOfAnotherVersion() throws Exception {
+        tag("demo-1.5", "demo-1.5.7", "demo-1.5.7.1", "demo-1.5.1");
+        TagNameTemplate template = TagNameTemplate.compile(FORMAT, "org.example", "demo");
+        assertNextFree(template, "1.5", "1.5.2", "1.5.0");
+        assertNextFree(template, "1.5.7", "1.5.7.2", "1.5.7.0");
+    }
+
+    @Test
+    public void templateWithTheVersionMoreThanOnce() throws Exception {
+        tag("v1.57/demo-1.57", "v1.57.1/demo-1.57.1", "v1.57.2/demo-1.57.3");
+        TagNameTemplate template = TagNameTemplate.compile("v@{project.version}/@{project.artifactId}-@{version}",
+                "org.example", "demo");
+        assertEquals("v1.57.2/demo-1.57.2", template.render("1.57.2"));
+        assertEquals("1.57.1", template.parse("v1.57.1/demo-1.57.1"));
+        assertNull(template.parse("v1.57.2/demo-1.57.3"));
+        assertNextFree(template, "1.57", "1.57.2", "1.57.0");
+    }
+
+    @Test
+    public void templateWithoutTheVersion() throws Exception {
+        TagNameTemplate template = TagNameTemplate.compile("@{project.groupId}", "org.example", "demo");
+        assertTrue(template.isConstant());
+        assertEquals("org.example", template.render("1.57"));
+        assertNull(template.parse("org.example"));
+        assertFalse(TagNameTemplate.compile(FORMAT, "org.example", "demo").isConstant());
+    }
+
+    private void tag(String... names) throws IOException {
+        for (String name : names) {
+            repository.git("tag", name);
+        }
+    }
+
+    /**
+     * Checks the index built from the tags of the repository against trying every candidate in turn.
+     */
+    private void assertNextFree(TagNameTemplate template, String baseVersion, String expected,
+                                String expectedWithRepeatCount) throws IOException {
+        Set<String> tags = new HashSet<>(repository.lines("tag", "-l"));
+        TagIndex index = new TagIndex();
+        for (String tag : tags) {
+            String version = template.parse(tag);
+            if (version != null && version.startsWith(baseVersion)) {
+                index.add(version);
+            }
+        }
+        assertEquals(expected, index.nextFree(baseVersion, false));
+        assertEquals(expected, firstUntaken(template, baseVersion, false, tags));
+        assertEquals(expectedWithRepeatCount, index.nextFree(baseVersion, true));
+        assertEquals(expectedWithRepeatCount, firstUntaken(template, baseVersion, true, tags));
+    }
+
+    private static String firstUntaken(TagNameTemplate template, String baseVersion,
+                                       boolean alwaysIncludeRepeatCount, Set<String> tags) {
+        String candidate = alwaysIncludeRepeatCount ? baseVersion + ".0" : baseVersion;
+        for (int repeat = 1; tags.contains(template.render(candidate)); repeat++) {
+            candidate = baseVersion + "." + repeat;
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TagRefParserTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TestRepository repository;
+
+    @Before
+    public void createRepository() throws IOException {
+        repository = TestRepository.create();
+        repository.commit("initial");
+        repository.git("branch", "feature");
+        repository.git("tag", "1.0");
+        repository.git("tag", "-a", "-m", "annotated", "1.1");
+        repository.git("tag", "release/2.0");
+        repository.git("tag", "-a", "-m", "annotated", "release/2.1");
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void refAdvertisement() throws IOException {
+        // HEAD, the branches and the peeled ids of the annotated tags are all advertised
+        assertEquals(Arrays.asList("1.0", "1.1", "release/2.0", "release/2.1"),
+                parse(repository.git("ls-remote", repository.getDir().getPath())));
+        assertEquals(Arrays.asList("1.0", "1.1", "release/2.0", "release/2.1"),
+                parse(repository.git("ls-remote", "--tags", repository.getDir().getPath())));
+    }
+
+    @Test
+    public void forEachRef() throws IOException {
+        assertEquals(Arrays.asList("1.0", "1.1", "release/2.0", "release/2.1"),
+                parse(repository.git("for-each-ref", "--format=%(objectname) %(refname)")));
+        assertEquals(Arrays.asList("1.1", "release/2.1"),
+                parse(repository.git("for-each-ref", "--format=%(objectname)\t%(refname)", "refs/tags/1.1",
+                        "refs/tags/release/2.1")));
+    }
+
+    @Test
+    public void packedRefs() throws IOException {
+        repository.git("pack-refs", "--all");
+        // a header, and the peeled ids of the annotated tags on lines of their own
+        assertEquals(Arrays.asList("1.0", "1.1", "release/2.0", "release/2.1"),
+                parse(FileUtils.readFileToString(repository.file(".git/packed-refs"), "UTF-8")));
+    }
+
+    @Test
+    public void sha256() throws IOException {
+        repository.git("init", "-q", "--object-format=sha256", "sha256");
+        TestRepository.run(repository.file("sha256"), "commit", "-q", "--allow-empty", "-m", "initial");
+        TestRepository.run(repository.file("sha256"), "tag", "-a", "-m", "annotated", "3.0");
+        assertEquals(Arrays.asList("3.0"),
+                parse(repository.git("ls-remote", repository.file("sha256").getPath())));
+    }
+
+    @Test
+    public void ignoresRecordsThatAreNotTags() {
+        assertEquals(Arrays.asList("ok", "spaced"), parse(
+                "0123456789abcdef0123456789abcdef01234567 refs/tags/ok\r\n"
+                        + "0123456789abcdef0123456789abcdef0123456 refs/tags/short-id\n"
+                        + "0123456789abcdef0123456789abcdef0123456g refs/tags/not-hex\n"
+                        + "0123456789abcdef0123456789abcdef01234567refs/tags/no-separator\n"
+                        + "0123456789abcdef0123456789abcdef01234567 refs/tagsx/y\n"
+                        + "0123456789abcdef0123456789abcdef01234567 refs/tags/\n"
+                        + "0123456789abcdef0123456789abcdef01234567 refs/tags/^{}\n"
+                        + "0123456789ABCDEF0123456789ABCDEF01234567    refs/tags/spaced  \n"
+                        + "\n"));
+    }
+
+    private static List<String> parse(String output) {
+        final List<String> names = new ArrayList<>();
+        TagRefParser parser = new TagRefParser(new PathConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                names.add(new String(buffer, offset, length, UTF_8));
+            }
+        });
+        for (String line : output.split("\n")) {
+            byte[] record = ("garbage" + line).getBytes(UTF_8);
+            // the record need not start at the beginning of the buffer
+            parser.consume(record, "garbage".length(), record.length - "garbage".length());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.stephenc.continuous.gittimestamp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A git repository in a temporary directory, created and modified with the {@code git} executable so that the tests
+ * read the files that git really writes.
+ */
+final class TestRepository implements Closeable {
+    private final File dir;
+
+    private TestRepository(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Creates a repository with an empty working tree.
+     *
+     * @return the repository.
+     * @throws IOException if the repository could not be created.
+     */
+    static TestRepository create() throws IOException {
+        TestRepository repository = new TestRepository(
+                Files.createTempDirectory("git-timestamp").toFile().getCanonicalFile());
+        repository.git("init", "-q");
+        repository.git("config", "core.autocrlf", "false");
+        return repository;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    File getGitDir() {
+        return new File(dir, ".git");
+    }
+
+    File file(String path) {
+        return new File(dir, path);
+    }
+
+    /**
+     * Writes a file of the working tree, creating its directories.
+     *
+     * @param path    the path of the file.
+     * @param content the content.
+     * @return the file.
+     * @throws IOException if the file could not be written.
+     */
+    File write(String path, String content) throws IOException {
+        File file = file(path);
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+        return file;
+    }
+
+    /**
+     * Writes files, adds them and commits them.
+     *
+     * @param message the commit message.
+     * @param paths   the paths of the files, whose content will be the commit message.
+     * @throws IOException if the commit failed.
+     */
+    void commit(String message, String... paths) throws IOException {
+        for (String path : paths) {
+            write(path, message + "\n");
+        }
+        if (paths.length > 0) {
+            List<String> args = new ArrayList<>(Arrays.asList("add", "--"));
+            args.addAll(Arrays.asList(paths));
+            git(args.toArray(new String[0]));
+        }
+        git("commit", "-q", "--allow-empty", "-m", message);
+    }
+
+    /**
+     * Runs git within the working tree.
+     *
+     * @param args the arguments.
+     * @return the standard output.
+     * @throws IOException if git could not be run or failed.
+     */
+    String git(String... args) throws IOException {
+        return run(dir, args);
+    }
+
+    /**
+     * Runs git within a directory, isolated from the configuration of the user running the tests.
+     *
+     * @param directory the directory.
+     * @param args      the arguments.
+     * @return the standard output.
+     * @throws IOException if git could not be run or failed.
+     */
+    static String run(File directory, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder builder = new ProcessBuilder(command).directory(directory).redirectErrorStream(true);
+        Map<String, String> env = builder.environment();
+        env.put("GIT_CONFIG_NOSYSTEM", "1");
+        env.put("GIT_CONFIG_GLOBAL", "/dev/null");
+        env.put("GIT_AUTHOR_NAME", "Test");
+        env.put("GIT_AUTHOR_EMAIL", "test@example.com");
+        env.put("GIT_COMMITTER_NAME", "Test");
+        env.put("GIT_COMMITTER_EMAIL", "test@example.com");
+        Process process = builder.start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            IOUtils.copy(in, output);
+        }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(command + " exited with code " + exitCode + ": " + output.toString("UTF-8"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        return output.toString("UTF-8");
+    }
+
+    /**
+     * Returns the lines of the output of git, without empty lines.
+     *
+     * @param args the arguments.
+     * @return the lines.
+     * @throws IOException if git could not be run or failed.
+     */
+    List<String> lines(String... args) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : git(args).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+}